@@ -0,0 +1,222 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A local HTTP range server for the benchmarks. Serves a synthetic file of the given size, whose byte
+ * at position p is (p % 251), so a downloaded copy can be verified without keeping the source around,
+ * or the content of a file on disk.
+ * Every request is delayed by the given latency, to simulate a remote server. Faults can be injected on
+ * top of it: a bandwidth shared by all the responses, a random jitter added to the latency, responses cut
+ * off midway (the connection is dropped) and error responses (503), each at a given rate.
+ * Requests are handled on virtual threads when available (Java 21), so the server itself is not the
+ * bottleneck at thousands of concurrent connections.
+ */
+public class BenchRangeServer {
+
+    private static final int BACKLOG = 16384; // max pending connections
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ERROR_STATUS = 503; // status of the injected error responses
+
+    private long fileSize;
+    private FileChannel source; // the served file, or null for the synthetic content
+    private long latencyMillis;
+    private long jitterMillis = 0; // max random delay added to the latency
+    private double dropRate = 0; // rate of the responses cut off midway
+    private double errorRate = 0; // rate of the range requests answered with an error
+    private TokenBucket bandwidth = new TokenBucket(TokenBucket.UNLIMITED); // shared by all the responses
+    private HttpServer server;
+
+    /**
+     * @param port - the port to listen on (0 for any free port).
+     * @param fileSize - the size of the served file, in bytes.
+     * @param latencyMillis - the delay of every response, in ms.
+     * @throws IOException if the server could not be started.
+     */
+    public BenchRangeServer(int port, long fileSize, long latencyMillis) throws IOException {
+        this(port, fileSize, null, latencyMillis);
+    }
+
+    /**
+     * Serves the content of the given file, instead of the synthetic content.
+     * @param port - the port to listen on (0 for any free port).
+     * @param sourceFile - the served file.
+     * @param latencyMillis - the delay of every response, in ms.
+     * @throws IOException if the file could not be opened, or the server could not be started.
+     */
+    public BenchRangeServer(int port, File sourceFile, long latencyMillis) throws IOException {
+        this(port, sourceFile.length(), FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ),
+                latencyMillis);
+    }
+
+    private BenchRangeServer(int port, long fileSize, FileChannel source, long latencyMillis) throws IOException {
+        this.fileSize = fileSize;
+        this.source = source;
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), BACKLOG);
+        this.server.setExecutor(createExecutor());
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    /**
+     * @returns a virtual thread per task executor if the runtime supports it, otherwise a cached thread pool.
+     */
+    private static ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Serves a HEAD request with the file size, or a GET request with the requested range.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(fileSize));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            if (random.nextDouble() < errorRate) {
+                exchange.sendResponseHeaders(ERROR_STATUS, -1);
+                return;
+            }
+            long start = 0;
+            long end = fileSize - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            }
+            exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+            // a dropped response stops at a random position: closing the body short of its length throws,
+            // and the server closes the connection
+            long cutOff = (random.nextDouble() < dropRate) ? start + random.nextLong(end - start + 1) : end + 1;
+            try (OutputStream body = exchange.getResponseBody()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (long position = start; position < cutOff; ) {
+                    int length = (int) Math.min(buffer.length, cutOff - position);
+                    read(buffer, position, length);
+                    bandwidth.acquire(length);
+                    body.write(buffer, 0, length);
+                    position += length;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Reads the served content starting at the given position into the buffer.
+     */
+    private void read(byte[] buffer, long position, int length) throws IOException {
+        if (source == null) {
+            fill(buffer, position, length);
+            return;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (source.read(target, position + target.position()) < 0) {
+                throw new IOException("The served file is shorter than its size.");
+            }
+        }
+    }
+
+    /**
+     * Fills the buffer with the synthetic file content starting at the given position.
+     */
+    static void fill(byte[] buffer, long position, int length) {
+        int value = (int) (position % 251);
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) value;
+            if (++value == 251) value = 0;
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        if (source != null) {
+            try {
+                source.close();
+            }
+            catch (IOException e) {
+                // the server is stopped anyway
+            }
+        }
+    }
+
+    /**
+     * @param bytesPerSecond - the bandwidth shared by all the responses, or {@TokenBucket.UNLIMITED}.
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth.setBytesPerSecond(bytesPerSecond);
+    }
+
+    public void setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Runs a standalone server:
+     * java BenchRangeServer PORT FILE-SIZE-BYTES | FILE [LATENCY-MS] [--bandwidth BYTES-PER-S] [--jitter MS]
+     *                       [--drop-rate RATE] [--error-rate RATE]
+     * (rates between 0 and 1) Given a FILE path instead of a size, the server serves the file's content.
+     */
+    public static void main(String[] args) throws IOException {
+        long latency = (args.length > 2 && !args[2].startsWith("--")) ? Long.parseLong(args[2]) : 0;
+        int port = Integer.parseInt(args[0]);
+        BenchRangeServer server = args[1].matches("\\d+") ?
+                new BenchRangeServer(port, Long.parseLong(args[1]), latency) :
+                new BenchRangeServer(port, new File(args[1]), latency);
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bandwidth": server.setBandwidth(Long.parseLong(args[++i])); break;
+                case "--jitter": server.setJitterMillis(Long.parseLong(args[++i])); break;
+                case "--drop-rate": server.setDropRate(Double.parseDouble(args[++i])); break;
+                case "--error-rate": server.setErrorRate(Double.parseDouble(args[++i])); break;
+            }
+        }
+        System.out.println("listening on port " + server.getPort());
+    }
+}
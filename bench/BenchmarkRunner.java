@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A small benchmark harness, in the spirit of JMH: each benchmark runs warmup iterations, then measured
+ * iterations, each one prepared by an untimed setup. A result line is printed per benchmark
+ * (key=value pairs), and all the results can be written as a JSON file in the JMH result format,
+ * so the existing JMH tooling can compare runs over time.
+ * JMH itself cannot be used here: its generated code requires the benchmarks to live in a named package,
+ * and the program classes live in the unnamed package, which a named package cannot import.
+ */
+public class BenchmarkRunner {
+
+    public static final String THROUGHPUT = "thrpt"; // score in units per second
+    public static final String AVERAGE_TIME = "avgt"; // score in time units per operation
+    private static final double Z_999 = 3.291; // two-sided 99.9% normal quantile, for the score error
+
+    private int warmupIterations;
+    private int measurementIterations;
+    private String filter;
+    private List<String> jsonResults = new ArrayList<>();
+
+    /**
+     * A single timed iteration, returning the number of units it processed (bytes, operations...).
+     */
+    public interface Iteration {
+        long run() throws Exception;
+    }
+
+    /**
+     * Prepares an iteration, outside the timed region.
+     */
+    public interface Setup {
+        Iteration prepare() throws Exception;
+    }
+
+    /**
+     * @param warmupIterations - the untimed iterations run first, for the JIT to settle.
+     * @param measurementIterations - the timed iterations.
+     * @param filter - only the benchmarks whose name contains it are run, or null for all of them.
+     */
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.filter = filter;
+    }
+
+    /**
+     * Runs a benchmark, unless filtered out, and prints its result.
+     * @param name - the benchmark name.
+     * @param params - the benchmark parameters, printed along with the result.
+     * @param mode - {@THROUGHPUT} or {@AVERAGE_TIME}.
+     * @param unit - the score unit, e.g. "MB/s" or "us/op".
+     * @param unitScale - the units per score unit (throughput), or the seconds per time unit (average time),
+     *                    e.g. 1e6 for MB/s, 1e-6 for us/op.
+     * @param setup - prepares each iteration.
+     * @throws Exception if an iteration failed.
+     */
+    public void run(String name, Map<String, String> params, String mode, String unit, double unitScale,
+                    Setup setup) throws Exception {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            setup.prepare().run();
+        }
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            Iteration iteration = setup.prepare();
+            long start = System.nanoTime();
+            long units = iteration.run();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            scores[i] = mode.equals(THROUGHPUT) ? units / seconds / unitScale : seconds / units / unitScale;
+        }
+        report(name, params, mode, unit, scores);
+    }
+
+    /**
+     * Prints the result line of a benchmark, and keeps its JSON record.
+     */
+    private void report(String name, Map<String, String> params, String mode, String unit, double[] scores) {
+        double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        double error = (scores.length > 1) ?
+                Z_999 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : Double.NaN;
+
+        StringBuilder line = new StringBuilder("benchmark=").append(name);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            line.append(' ').append(param.getKey()).append('=').append(param.getValue());
+        }
+        line.append(String.format(Locale.ROOT, " mode=%s score=%.3f error=%.3f unit=%s", mode, mean, error, unit));
+        System.out.println(line);
+
+        StringBuilder json = new StringBuilder("  {\n");
+        json.append("    \"benchmark\": \"").append(name).append("\",\n");
+        json.append("    \"mode\": \"").append(mode).append("\",\n");
+        json.append("    \"threads\": 1,\n    \"forks\": 1,\n");
+        json.append("    \"warmupIterations\": ").append(warmupIterations).append(",\n");
+        json.append("    \"measurementIterations\": ").append(measurementIterations).append(",\n");
+        json.append("    \"params\": {");
+        String separator = "";
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            json.append(separator).append('"').append(param.getKey()).append("\": \"")
+                    .append(param.getValue()).append('"');
+            separator = ", ";
+        }
+        json.append("},\n    \"primaryMetric\": {\n");
+        json.append("      \"score\": ").append(number(mean)).append(",\n");
+        json.append("      \"scoreError\": ").append(number(error)).append(",\n");
+        json.append("      \"scoreConfidence\": [").append(number(mean - error)).append(", ")
+                .append(number(mean + error)).append("],\n");
+        json.append("      \"scoreUnit\": \"").append(unit).append("\",\n");
+        json.append("      \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++) {
+            json.append((i > 0) ? ", " : "").append(number(scores[i]));
+        }
+        json.append("]]\n    },\n    \"secondaryMetrics\": {}\n  }");
+        jsonResults.add(json.toString());
+    }
+
+    /**
+     * @returns the given value as a JSON number, or "NaN" as JMH writes it.
+     */
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * Writes the results of all the benchmarks run so far, as a JSON array in the JMH result format.
+     * @param filePath - the JSON file path.
+     * @throws IOException if the file could not be written.
+     */
+    public void writeJson(String filePath) throws IOException {
+        String json = "[\n" + String.join(",\n", jsonResults) + "\n]\n";
+        Files.write(Paths.get(filePath), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param namesAndValues - the parameter names, each one followed by its value.
+     * @returns the parameters of a benchmark, in the given order.
+     */
+    public static Map<String, String> params(String... namesAndValues) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            params.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+}
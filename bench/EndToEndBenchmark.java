@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An end-to-end benchmark of a whole download from several local mirrors, each one a BenchRangeServer
+ * running in its own process (so it does not weigh on the measured CPU time and heap), with its own
+ * simulated bandwidth, latency, jitter, connection drops and error responses.
+ * Each run downloads the synthetic file through a generated .list file, verifies it byte for byte, and
+ * prints a result line: wall time, throughput, CPU time, peak heap, and the bytes received more than once
+ * (the ranges fetched again after a drop). A summary line follows, with the median of the runs.
+ * Given the results of a previous run, a median throughput lower than the baseline's by more than the
+ * threshold is reported as a regression.
+ * usage: java EndToEndBenchmark [--size BYTES] [--connections N] [--runs N] [--server SPEC]...
+ *                               [--results FILE] [--baseline FILE] [--threshold PERCENT] [-- DOWNLOAD-OPTION...]
+ * A server SPEC is a comma separated list of bandwidth=RATE[K|M|G], latency=MS, jitter=MS, drop=RATE, error=RATE
+ * (e.g. "bandwidth=20M,latency=30,jitter=20,drop=0.02"), an empty SPEC is a server without faults.
+ * The download options are passed to the download manager (e.g. "-- --transport http2").
+ * Exits with 1 if a download failed verification, 2 on a throughput regression.
+ * (see run-e2e.sh)
+ */
+public class EndToEndBenchmark {
+
+    private static final long DEFAULT_FILE_SIZE = 256L * 1024 * 1024;
+    private static final int DEFAULT_CONNECTIONS = 8;
+    private static final int DEFAULT_RUNS = 3;
+    private static final double DEFAULT_THRESHOLD = 10; // max throughput drop (in %) from the baseline
+    private static final String SUMMARY = "summary"; // first word of the summary line of a results file
+    private static final int VERIFICATION_FAILED = 1; // exit status
+    private static final int REGRESSION = 2; // exit status
+
+    private static List<Process> servers = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = DEFAULT_FILE_SIZE;
+        int connections = DEFAULT_CONNECTIONS;
+        int runs = DEFAULT_RUNS;
+        double threshold = DEFAULT_THRESHOLD;
+        String resultsFile = null;
+        String baselineFile = null;
+        List<String> serverSpecs = new ArrayList<>();
+        List<String> downloadOptions = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size": fileSize = parseRate(args[++i]); break;
+                case "--connections": connections = Integer.parseInt(args[++i]); break;
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                case "--server": serverSpecs.add(args[++i]); break;
+                case "--results": resultsFile = args[++i]; break;
+                case "--baseline": baselineFile = args[++i]; break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                case "--": downloadOptions.addAll(Arrays.asList(args).subList(i + 1, args.length)); i = args.length; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (serverSpecs.isEmpty()) {
+            serverSpecs.add("");
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(EndToEndBenchmark::stopServers));
+        Path workDir = Files.createTempDirectory("idcdm-e2e");
+        List<String> lines = new ArrayList<>();
+        boolean verified = true;
+        double[] throughputs = new double[runs];
+        double[] cpuSeconds = new double[runs];
+        long[] peakHeaps = new long[runs];
+        long[] redownloaded = new long[runs];
+        try {
+            Path listFile = workDir.resolve("mirrors.list");
+            List<String> addresses = new ArrayList<>();
+            for (String spec : serverSpecs) {
+                addresses.add("http://127.0.0.1:" + startServer(fileSize, spec) + "/e2e.bin");
+            }
+            Files.write(listFile, addresses, StandardCharsets.US_ASCII);
+            List<String> downloadArgs = new ArrayList<>(Arrays.asList(listFile.toString(), Integer.toString(connections)));
+            downloadArgs.addAll(downloadOptions);
+
+            for (int run = 0; run < runs; run++) {
+                File destination = workDir.resolve("e2e.bin").toFile();
+                ProgramInput input = UserInputHandler.parseArguments(downloadArgs.toArray(new String[0]))
+                        .forJob(UserInputHandler.getServerAddresses(listFile.toString()), destination.getPath());
+                System.gc();
+                resetPeakHeap();
+                long cpuStart = processCpuNanos();
+                long start = System.nanoTime();
+                DownloadManager downloadManager = new DownloadManager(input);
+                boolean downloaded = downloadManager.startDownload();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                cpuSeconds[run] = (processCpuNanos() - cpuStart) / 1e9;
+                peakHeaps[run] = peakHeapBytes();
+                redownloaded[run] = Math.max(0, downloadManager.getReceivedBytes() - fileSize);
+                boolean runVerified = downloaded && destination.length() == fileSize && verify(destination);
+                verified &= runVerified;
+                throughputs[run] = fileSize / 1e6 / seconds;
+                destination.delete();
+
+                String line = String.format(Locale.ROOT, "run=%d servers=%d size_mb=%.1f connections=%d " +
+                                "seconds=%.2f mb_per_s=%.1f cpu_seconds=%.2f peak_heap_mb=%.1f " +
+                                "redownloaded_bytes=%d verified=%b",
+                        run + 1, serverSpecs.size(), fileSize / 1e6, connections, seconds, throughputs[run],
+                        cpuSeconds[run], peakHeaps[run] / 1e6, redownloaded[run], runVerified);
+                System.out.println(line);
+                lines.add(line);
+            }
+        }
+        finally {
+            stopServers();
+            workDir.resolve("mirrors.list").toFile().delete();
+            workDir.toFile().delete();
+        }
+
+        double medianThroughput = median(throughputs);
+        String summary = String.format(Locale.ROOT, "%s runs=%d mb_per_s=%.1f cpu_seconds=%.2f peak_heap_mb=%.1f " +
+                        "redownloaded_bytes=%d verified=%b",
+                SUMMARY, runs, medianThroughput, median(cpuSeconds), median(toDoubles(peakHeaps)) / 1e6,
+                (long)median(toDoubles(redownloaded)), verified);
+        System.out.println(summary);
+        lines.add(summary);
+        if (resultsFile != null) {
+            Files.write(Paths.get(resultsFile), lines, StandardCharsets.UTF_8);
+        }
+
+        if (!verified) {
+            System.out.println("FAILED: a downloaded file does not match the served file");
+            System.exit(VERIFICATION_FAILED);
+        }
+        if (baselineFile != null) {
+            double baseline = readBaselineThroughput(baselineFile);
+            double change = (medianThroughput - baseline) / baseline * 100;
+            System.out.println(String.format(Locale.ROOT, "baseline mb_per_s=%.1f change=%+.1f%% threshold=-%.1f%%",
+                    baseline, change, threshold));
+            if (change < -threshold) {
+                System.out.println("REGRESSION: the throughput dropped past the threshold");
+                System.exit(REGRESSION);
+            }
+        }
+        System.exit(0); // the download manager's pools may keep non-daemon threads alive
+    }
+
+    /**
+     * Starts a range server serving the synthetic file in a new process, with the faults of the given spec.
+     * @returns the port the server listens on.
+     */
+    private static int startServer(long fileSize, String spec) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "BenchRangeServer", "0", Long.toString(fileSize)));
+        for (String setting : spec.split(",")) {
+            if (setting.trim().isEmpty()) continue;
+            String[] keyValue = setting.trim().split("=", 2);
+            switch (keyValue[0]) {
+                case "bandwidth": command.addAll(Arrays.asList("--bandwidth", Long.toString(parseRate(keyValue[1])))); break;
+                case "latency": command.add(6, keyValue[1]); break; // the positional latency argument
+                case "jitter": command.addAll(Arrays.asList("--jitter", keyValue[1])); break;
+                case "drop": command.addAll(Arrays.asList("--drop-rate", keyValue[1])); break;
+                case "error": command.addAll(Arrays.asList("--error-rate", keyValue[1])); break;
+                default: throw new IllegalArgumentException("Unknown server setting: " + setting);
+            }
+        }
+        Process server = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        servers.add(server);
+        BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream(),
+                StandardCharsets.US_ASCII));
+        String line = output.readLine(); // "listening on port N"
+        if (line == null) {
+            throw new IOException("The range server did not start: " + spec);
+        }
+        return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    private static void stopServers() {
+        for (Process server : servers) {
+            server.destroy();
+        }
+    }
+
+    /**
+     * @param value - a byte count or rate, with an optional K, M or G (binary) suffix.
+     */
+    private static long parseRate(String value) {
+        String unit = value.substring(value.length() - 1).toUpperCase();
+        int shift = 10 * ("KMG".indexOf(unit) + 1);
+        return (shift == 0) ? Long.parseLong(value) : Long.parseLong(value.substring(0, value.length() - 1)) << shift;
+    }
+
+    /**
+     * @returns the median throughput of the summary line of the given results file.
+     * @throws IOException if the file could not be read, or holds no summary.
+     */
+    private static double readBaselineThroughput(String resultsFile) throws IOException {
+        for (String line : Files.readAllLines(Paths.get(resultsFile), StandardCharsets.UTF_8)) {
+            if (!line.startsWith(SUMMARY)) continue;
+            for (String field : line.split(" ")) {
+                if (field.startsWith("mb_per_s=")) {
+                    return Double.parseDouble(field.substring("mb_per_s=".length()));
+                }
+            }
+        }
+        throw new IOException("No summary line in the baseline file: " + resultsFile);
+    }
+
+    /**
+     * @returns true if and only if the file holds the synthetic content served by BenchRangeServer.
+     */
+    private static boolean verify(File file) throws IOException {
+        byte[] actual = new byte[1 << 20];
+        byte[] expected = new byte[actual.length];
+        long position = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.readNBytes(actual, 0, actual.length)) > 0) {
+                BenchRangeServer.fill(expected, position, read);
+                if (!Arrays.equals(actual, 0, read, expected, 0, read)) return false;
+                position += read;
+            }
+        }
+        return position > 0;
+    }
+
+    /**
+     * @returns the CPU time (in ns) used by this process, or 0 if the JVM does not report it.
+     */
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @returns the sum of the peak usages of the heap memory pools since the last reset, in bytes.
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return (sorted.length % 2 == 1) ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static double[] toDoubles(long[] values) {
+        return Arrays.stream(values).asDoubleStream().toArray();
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An end-to-end check of a download larger than 4 GB, where the file positions overflow an int past 2 GB,
+ * and an unsigned int past 4 GB.
+ * The source file is created sparse (RandomAccessFile.setLength), with random markers written across
+ * the 2 GB and 4 GB boundaries and at its end, and served by a BenchRangeServer process. The file is
+ * downloaded by IdcDm processes, once per write mode, then once more killed midway and resumed (with
+ * --verify). Each copy is checked against the markers, and its SHA-256 digest against the source's.
+ * usage: java LargeFileCheck [--size BYTES] [--connections N] [--dir DIRECTORY] [MODE...]
+ * The modes are buffered and streaming by default, and the files are written in a temporary directory.
+ * Exits with 1 if a download failed, or a copy does not match the source.
+ * (see run-large-file.sh)
+ */
+public class LargeFileCheck {
+
+    private static final long DEFAULT_FILE_SIZE = (4L << 30) + (512L << 20); // 4.5 GB
+    private static final int DEFAULT_CONNECTIONS = 8;
+    private static final long[] BOUNDARIES = {1L << 31, 1L << 32}; // 2 GB and 4 GB
+    private static final int MARKER_SIZE = 1 << 20; // bytes of each marker, centered on its boundary
+    private static final int INTERRUPT_PERCENTAGE = 40; // progress at which the interrupted download is killed
+    private static final String FILE_NAME = "large.bin";
+    private static final Pattern PROGRESS = Pattern.compile("Downloaded:\t\\.\\.\\.\t(\\d+)%");
+    private static final long SEED = 42;
+    private static final int FAILED = 1; // exit status
+
+    private static Process server;
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = DEFAULT_FILE_SIZE;
+        int connections = DEFAULT_CONNECTIONS;
+        String directory = null;
+        List<WriteMode> modes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size": fileSize = Long.parseLong(args[++i]); break;
+                case "--connections": connections = Integer.parseInt(args[++i]); break;
+                case "--dir": directory = args[++i]; break;
+                default:
+                    WriteMode mode = WriteMode.fromName(args[i]);
+                    if (mode == null) throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                    modes.add(mode);
+            }
+        }
+        if (modes.isEmpty()) {
+            modes.addAll(Arrays.asList(WriteMode.BUFFERED, WriteMode.STREAMING));
+        }
+        if (fileSize <= BOUNDARIES[BOUNDARIES.length - 1] + MARKER_SIZE) {
+            throw new IllegalArgumentException("The file must be larger than 4 GB: " + fileSize);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(LargeFileCheck::stopServer));
+        Path workDir = (directory != null) ? Files.createTempDirectory(Path.of(directory), "idcdm-large") :
+                Files.createTempDirectory("idcdm-large");
+        File source = workDir.resolve("source.bin").toFile();
+        File destination = workDir.resolve(FILE_NAME).toFile();
+        boolean passed = true;
+        try {
+            List<Marker> markers = createSparseFile(source, fileSize);
+            String digest = sha256(source);
+            String address = "http://127.0.0.1:" + startServer(source) + "/" + FILE_NAME;
+            System.out.println(String.format("source size=%d sha256=%s", fileSize, digest));
+
+            for (WriteMode mode : modes) {
+                List<String> options = Arrays.asList("--write-mode", mode.name().toLowerCase());
+                boolean downloaded = download(workDir, address, connections, options, -1) == 0;
+                passed &= check(mode.name().toLowerCase(), downloaded, destination, markers, digest);
+            }
+
+            List<String> options = Arrays.asList("--write-mode", modes.get(0).name().toLowerCase());
+            download(workDir, address, connections, options, INTERRUPT_PERCENTAGE);
+            // killed with its part file and metadata (see MetadataManager) left for the next run to resume
+            boolean interrupted = !destination.exists() && new File(destination.getPath() + ".part").exists() &&
+                    new File(destination.getPath() + ".tmp").exists();
+            List<String> resumeOptions = new ArrayList<>(options);
+            resumeOptions.add("--verify");
+            boolean resumed = interrupted && download(workDir, address, connections, resumeOptions, -1) == 0;
+            if (!interrupted) {
+                System.out.println("the download was not interrupted midway");
+            }
+            passed &= check(modes.get(0).name().toLowerCase() + "-resumed", resumed, destination, markers, digest);
+        }
+        finally {
+            stopServer();
+            for (File file : workDir.toFile().listFiles()) {
+                file.delete();
+            }
+            workDir.toFile().delete();
+        }
+        if (!passed) {
+            System.out.println("FAILED: a downloaded file does not match the source file");
+            System.exit(FAILED);
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Random bytes written at a position of the source file.
+     */
+    private static class Marker {
+        private long position;
+        private byte[] data;
+
+        Marker(long position, byte[] data) {
+            this.position = position;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Creates the sparse source file, with a marker across each boundary and one at the end of the file.
+     * @returns the written markers.
+     */
+    private static List<Marker> createSparseFile(File file, long fileSize) throws IOException {
+        Random random = new Random(SEED);
+        List<Marker> markers = new ArrayList<>();
+        for (long boundary : BOUNDARIES) {
+            markers.add(new Marker(boundary - MARKER_SIZE / 2, new byte[MARKER_SIZE]));
+        }
+        markers.add(new Marker(fileSize - MARKER_SIZE, new byte[MARKER_SIZE]));
+        try (RandomAccessFile sparse = new RandomAccessFile(file, "rw")) {
+            sparse.setLength(fileSize);
+            for (Marker marker : markers) {
+                random.nextBytes(marker.data);
+                sparse.seek(marker.position);
+                sparse.write(marker.data);
+            }
+        }
+        return markers;
+    }
+
+    /**
+     * Starts a range server serving the source file in a new process.
+     * @returns the port the server listens on.
+     */
+    private static int startServer(File source) throws IOException {
+        server = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "BenchRangeServer", "0", source.getPath())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(server.getInputStream(),
+                StandardCharsets.US_ASCII));
+        String line = output.readLine(); // "listening on port N"
+        if (line == null) {
+            throw new IOException("The range server did not start.");
+        }
+        return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    private static void stopServer() {
+        if (server != null) {
+            server.destroy();
+        }
+    }
+
+    /**
+     * Downloads the file into the working directory, with an IdcDm process.
+     * @param killPercentage - the progress at which the process is killed (as by a crash), or -1.
+     * @returns the exit status of the process, or -1 if it was killed.
+     */
+    private static int download(Path workDir, String address, int connections, List<String> options,
+                                int killPercentage) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "IdcDm", address, Integer.toString(connections)));
+        command.addAll(options);
+        Process process = new ProcessBuilder(command).directory(workDir.toFile()).redirectErrorStream(true).start();
+        List<String> lastLines = new ArrayList<>();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                lastLines.add(line);
+                if (lastLines.size() > 10) lastLines.remove(0);
+                Matcher progress = PROGRESS.matcher(line);
+                if (killPercentage >= 0 && progress.find() && Integer.parseInt(progress.group(1)) >= killPercentage) {
+                    process.destroyForcibly().waitFor(); // closes the output too
+                    System.out.println("killed the download at " + progress.group(1) + "%");
+                    return -1;
+                }
+            }
+        }
+        int status = process.waitFor();
+        if (status != 0) {
+            System.out.println("the download failed (status " + status + "):");
+            lastLines.forEach(System.out::println);
+        }
+        return status;
+    }
+
+    /**
+     * Checks the downloaded copy against the markers and the digest of the source, then deletes it.
+     * @returns true if and only if the copy was downloaded and matches the source.
+     */
+    private static boolean check(String name, boolean downloaded, File copy, List<Marker> markers, String digest)
+            throws IOException, NoSuchAlgorithmException {
+        boolean markersMatch = false;
+        boolean digestMatches = false;
+        if (downloaded && copy.exists()) {
+            markersMatch = checkMarkers(copy, markers);
+            digestMatches = digest.equals(sha256(copy));
+        }
+        copy.delete();
+        boolean passed = markersMatch && digestMatches;
+        System.out.println(String.format("run=%s downloaded=%b markers=%b sha256=%b passed=%b",
+                name, downloaded, markersMatch, digestMatches, passed));
+        return passed;
+    }
+
+    /**
+     * @returns true if and only if the file holds every marker at its position.
+     */
+    private static boolean checkMarkers(File file, List<Marker> markers) throws IOException {
+        try (RandomAccessFile copy = new RandomAccessFile(file, "r")) {
+            byte[] actual = new byte[MARKER_SIZE];
+            for (Marker marker : markers) {
+                copy.seek(marker.position);
+                copy.readFully(actual);
+                if (!Arrays.equals(actual, marker.data)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @returns the SHA-256 digest of the file, in hexadecimal.
+     */
+    private static String sha256(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MARKER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
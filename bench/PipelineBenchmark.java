@@ -0,0 +1,261 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks of the hot paths of the chunk pipeline, without a network:
+ * - readLoop: the HTTP/1.1 transport's read loop feeding a RangeSink from an in-memory stream, with a
+ *   thread draining the chunk queue (buffered mode), or streaming the data to a file (MB/s);
+ * - writer: a ChunkWriter writing the chunks handed over in order, or shuffled, including the metadata
+ *   group commits (MB/s);
+ * - metadataCommit: a group commit of 64 written chunks, as the chunk count grows from 1K to 1M (us/op);
+ * - scanPending, countChunks, loadTable: the chunk state table scans, and its restoring from the
+ *   metadata bitmap, as the chunk count grows (us/op).
+ * usage: java PipelineBenchmark [--quick] [--filter NAME] [--json RESULTS-FILE]
+ * (see run-pipeline.sh)
+ */
+public class PipelineBenchmark {
+
+    private static final int PIPELINE_CHUNKS = 512; // chunks of the file read and written by an iteration (~65 MB)
+    private static final int COMMIT_CHUNKS = 64; // chunks per metadata group commit
+    private static final int COMMITS_PER_ITERATION = 64;
+    private static final int[] TABLE_SIZES = {1000, 10000, 100000, 1000000}; // chunk counts of the metadata benchmarks
+    private static final long SCANNED_CHUNKS_PER_ITERATION = 20000000; // table scans repeat up to this many chunks
+    private static final long SEED = 42;
+
+    private static Path tempDir;
+
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String filter = null;
+        String jsonFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick": quick = true; break;
+                case "--filter": filter = args[++i]; break;
+                case "--json": jsonFile = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        BenchmarkRunner runner = quick ? new BenchmarkRunner(1, 3, filter) : new BenchmarkRunner(3, 5, filter);
+        tempDir = Files.createTempDirectory("idcdm-bench");
+        try {
+            for (WriteMode writeMode : WriteMode.values()) {
+                benchmarkReadLoop(runner, writeMode);
+            }
+            benchmarkWriter(runner, false);
+            benchmarkWriter(runner, true);
+            for (int chunkCount : TABLE_SIZES) {
+                benchmarkMetadataCommit(runner, chunkCount);
+            }
+            for (int chunkCount : TABLE_SIZES) {
+                benchmarkTableScans(runner, chunkCount);
+            }
+        }
+        finally {
+            deleteRecursively(tempDir);
+        }
+        if (jsonFile != null) {
+            runner.writeJson(jsonFile);
+        }
+    }
+
+    /**
+     * The transport's read loop over an in-memory response body, through a RangeSink covering the whole file.
+     */
+    private static void benchmarkReadLoop(BenchmarkRunner runner, WriteMode writeMode) throws Exception {
+        long fileSize = (long)PIPELINE_CHUNKS * Chunk.CHUNK_SIZE;
+        byte[] body = new byte[(int)fileSize];
+        new Random(SEED).nextBytes(body);
+        BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_BUFFER_MB, Chunk.CHUNK_SIZE);
+        try (FileChannel destination = FileChannel.open(tempDir.resolve("read-loop.bin"), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            runner.run("readLoop", BenchmarkRunner.params("writeMode", writeMode.name().toLowerCase()),
+                    BenchmarkRunner.THROUGHPUT, "MB/s", 1e6, () -> {
+                        ChunkManager chunkManager = new ChunkManager(fileSize);
+                        InFlightRange range = claimWholeFile(chunkManager, fileSize);
+                        PriorityBlockingQueue<Chunk> chunkQueue = new PriorityBlockingQueue<>();
+                        DownloadStatus status = new DownloadStatus(fileSize, false);
+                        TokenBucket unlimited = new TokenBucket(TokenBucket.UNLIMITED);
+                        RangeSink sink = (writeMode == WriteMode.STREAMING) ?
+                                new RangeSink(range, chunkManager, chunkQueue, status, unlimited, destination) :
+                                new RangeSink(range, chunkManager, chunkQueue, status, unlimited, bufferPool);
+                        Http1Transport transport = new Http1Transport(new ConnectionStats());
+                        return () -> {
+                            Thread drainer = new Thread(() -> drain(chunkQueue, PIPELINE_CHUNKS));
+                            drainer.start();
+                            transport.readBody(new ByteArrayInputStream(body), sink);
+                            drainer.join();
+                            return fileSize;
+                        };
+                    });
+        }
+    }
+
+    /**
+     * Marks all the chunks of the table in flight, in a single range.
+     */
+    private static InFlightRange claimWholeFile(ChunkManager chunkManager, long fileSize) {
+        int chunkCount = chunkManager.getChunksCount();
+        for (int i = 0; i < chunkCount; i++) {
+            chunkManager.markInFlight(i);
+        }
+        InFlightRange range = new InFlightRange(new ChunkRange(0, chunkCount, fileSize, chunkCount));
+        range.setMirror(new MirrorStats("http://127.0.0.1/bench.bin", TokenBucket.UNLIMITED));
+        return range;
+    }
+
+    /**
+     * Takes the given number of chunks from the queue, releasing their buffers, as the writer would.
+     */
+    private static void drain(PriorityBlockingQueue<Chunk> chunkQueue, int chunkCount) {
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                chunkQueue.take().clearData();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A writer writing the chunks of a file as a producer thread hands them over, in order or shuffled.
+     */
+    private static void benchmarkWriter(BenchmarkRunner runner, boolean shuffled) throws Exception {
+        long fileSize = (long)PIPELINE_CHUNKS * Chunk.CHUNK_SIZE;
+        ByteBuffer pattern = ByteBuffer.allocateDirect(Chunk.CHUNK_SIZE);
+        byte[] patternBytes = new byte[Chunk.CHUNK_SIZE];
+        new Random(SEED).nextBytes(patternBytes);
+        pattern.put(patternBytes).flip();
+        String destination = tempDir.resolve("writer.bin").toString();
+        runner.run("writer", BenchmarkRunner.params("order", shuffled ? "shuffled" : "inOrder"),
+                BenchmarkRunner.THROUGHPUT, "MB/s", 1e6, () -> {
+                    new File(destination).delete();
+                    MetadataManager metadataManager = new MetadataManager(destination, fileSize, null);
+                    ChunkManager chunkManager = new ChunkManager(fileSize);
+                    int chunkCount = chunkManager.getChunksCount();
+                    List<Chunk> chunks = new ArrayList<>(chunkCount);
+                    for (int i = 0; i < chunkCount; i++) {
+                        chunkManager.markInFlight(i);
+                        chunkManager.markDownloaded(i);
+                        ChunkRange chunkRange = new ChunkRange(i, fileSize, chunkCount);
+                        ByteBuffer data = pattern.duplicate();
+                        data.limit((int)chunkRange.size());
+                        chunks.add(new Chunk(i, data, chunkRange, null));
+                    }
+                    if (shuffled) {
+                        Collections.shuffle(chunks, new Random(SEED));
+                    }
+                    PriorityBlockingQueue<Chunk> chunkQueue = new PriorityBlockingQueue<>();
+                    ChunkWriter writer = new ChunkWriter(destination, chunkQueue, metadataManager, chunkManager,
+                            new DownloadStatus(fileSize, false), null, null);
+                    metadataManager.setDataChannel(writer.getDestinationChannel());
+                    return () -> {
+                        Thread producer = new Thread(() -> chunks.forEach(chunkQueue::put));
+                        producer.start();
+                        writer.run();
+                        producer.join();
+                        metadataManager.commit();
+                        writer.closeWriter();
+                        metadataManager.clearFiles();
+                        return fileSize;
+                    };
+                });
+    }
+
+    /**
+     * Group commits of the metadata of a file of the given chunk count, walking through its chunks.
+     */
+    private static void benchmarkMetadataCommit(BenchmarkRunner runner, int chunkCount) throws Exception {
+        long fileSize = (long)chunkCount * Chunk.CHUNK_SIZE;
+        String sourceFile = tempDir.resolve("metadata-" + chunkCount + ".bin").toString();
+        runner.run("metadataCommit", BenchmarkRunner.params("chunks", Integer.toString(chunkCount)),
+                BenchmarkRunner.AVERAGE_TIME, "us/op", 1e-6, () -> {
+                    MetadataManager metadataManager = new MetadataManager(sourceFile, fileSize, null);
+                    return () -> {
+                        int nextChunk = 0;
+                        for (int c = 0; c < COMMITS_PER_ITERATION; c++) {
+                            for (int i = 0; i < COMMIT_CHUNKS; i++) {
+                                metadataManager.markCompleted(new Chunk(nextChunk,
+                                        new ChunkRange(nextChunk, fileSize, chunkCount)));
+                                nextChunk = (nextChunk + 1) % chunkCount;
+                            }
+                            metadataManager.commit();
+                        }
+                        metadataManager.clearFiles();
+                        return COMMITS_PER_ITERATION;
+                    };
+                });
+    }
+
+    /**
+     * The scans of a chunk state table of the given chunk count, three quarters of it written (a typical
+     * resumed download), and its restoring from the metadata bitmap.
+     */
+    private static void benchmarkTableScans(BenchmarkRunner runner, int chunkCount) throws Exception {
+        long fileSize = (long)chunkCount * Chunk.CHUNK_SIZE;
+        long repetitions = Math.max(1, SCANNED_CHUNKS_PER_ITERATION / chunkCount);
+        ChunkManager chunkManager = new ChunkManager(fileSize);
+        File metadataFile = tempDir.resolve("table-" + chunkCount + ".tmp").toFile();
+        MinifiedChunkTable minifiedTable = MinifiedChunkTable.create(metadataFile, fileSize, null);
+        Random random = new Random(SEED);
+        for (int i = 0; i < chunkCount; i++) {
+            if (random.nextInt(4) != 0) {
+                chunkManager.markInFlight(i);
+                chunkManager.markDownloaded(i);
+                chunkManager.markWritten(i);
+                minifiedTable.markCompleted(i, 0);
+            }
+        }
+        String chunks = Integer.toString(chunkCount);
+        int[] sink = new int[1]; // keeps the results alive
+
+        runner.run("scanPending", BenchmarkRunner.params("chunks", chunks),
+                BenchmarkRunner.AVERAGE_TIME, "us/op", 1e-6, () -> () -> {
+                    for (long r = 0; r < repetitions; r++) {
+                        for (int i = chunkManager.nextPendingChunk(0); i >= 0; i = chunkManager.nextPendingChunk(i + 1)) {
+                            sink[0]++;
+                        }
+                    }
+                    return repetitions;
+                });
+        runner.run("countChunks", BenchmarkRunner.params("chunks", chunks),
+                BenchmarkRunner.AVERAGE_TIME, "us/op", 1e-6, () -> () -> {
+                    for (long r = 0; r < repetitions; r++) {
+                        sink[0] += chunkManager.countChunks(ChunkManager.WRITTEN);
+                    }
+                    return repetitions;
+                });
+        runner.run("loadTable", BenchmarkRunner.params("chunks", chunks),
+                BenchmarkRunner.AVERAGE_TIME, "us/op", 1e-6, () -> () -> {
+                    for (long r = 0; r < repetitions; r++) {
+                        sink[0] += new ChunkManager(minifiedTable).getChunksCount();
+                    }
+                    return repetitions;
+                });
+        minifiedTable.close();
+        if (sink[0] == 42) System.out.print(""); // the JIT cannot drop the scans
+    }
+
+    /**
+     * Deletes the given directory and its content.
+     */
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Downloads a file from a BenchRangeServer with the given number of concurrent ranges (one chunk each)
+ * and thread mode, in the current directory, and prints a single result line:
+ * mode, ranges, wall time, throughput, peak RSS, peak heap, peak platform threads and verification result.
+ * Each configuration should run in its own JVM, since the peak figures cover the whole process.
+ * usage: java VirtualThreadBenchmark URL RANGES platform|virtual
+ * (the server must serve RANGES * Chunk.CHUNK_SIZE bytes, see run-virtual-threads.sh)
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        String url = args[0];
+        int ranges = Integer.parseInt(args[1]);
+        String mode = args[2];
+        String[] downloadArgs = {url, Integer.toString(ranges), "--threads", mode, "--write-mode", "streaming"};
+
+        long start = System.nanoTime();
+        new DownloadManager(UserInputHandler.parseArguments(downloadArgs)).startDownload();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        File downloaded = new File(url.substring(url.lastIndexOf('/') + 1));
+        long size = downloaded.length();
+        boolean verified = verify(downloaded);
+        downloaded.delete();
+
+        System.out.println(String.format("mode=%s ranges=%d seconds=%.2f mb_per_s=%.1f peak_rss_mb=%.1f " +
+                        "peak_heap_mb=%.1f peak_platform_threads=%d verified=%b",
+                mode, ranges, seconds, size / 1e6 / seconds, peakRssKB() / 1024.0, peakHeapBytes() / 1e6,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(), verified));
+    }
+
+    /**
+     * @returns true if and only if the file holds the synthetic content served by BenchRangeServer.
+     */
+    private static boolean verify(File file) throws IOException {
+        byte[] actual = new byte[1 << 20];
+        byte[] expected = new byte[actual.length];
+        long position = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.readNBytes(actual, 0, actual.length)) > 0) {
+                BenchRangeServer.fill(expected, position, read);
+                if (!Arrays.equals(actual, 0, read, expected, 0, read)) return false;
+                position += read;
+            }
+        }
+        return position > 0;
+    }
+
+    /**
+     * @returns the peak resident set size of this process (in KB) on Linux, or -1 elsewhere.
+     */
+    private static long peakRssKB() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        catch (IOException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @returns the sum of the peak usages of the heap memory pools, in bytes.
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
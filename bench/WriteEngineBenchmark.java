@@ -0,0 +1,191 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the write engines (--write-mode buffered, streaming and mapped) on a file larger than the
+ * memory, without a network: getter threads feed ranges of an in-memory body to the real sinks, through the
+ * HTTP/1.1 transport's read loop, claiming the ranges in order as the scheduler hands them out. The file is
+ * preallocated as in a download, and the time runs until the last chunk is committed and the file closed,
+ * so the dirty data the page cache cannot hold is part of it.
+ * Prints a result line per mode: file size, wall time, throughput and peak heap.
+ * usage: java WriteEngineBenchmark [--size BYTES] [--getters N] [--dir DIRECTORY] [MODE...]
+ * The size is 1.25 times the physical memory by default, and the file is written in the current directory.
+ * (see run-write-engines.sh)
+ */
+public class WriteEngineBenchmark {
+
+    private static final double MEMORY_FACTOR = 1.25; // default file size, relative to the physical memory
+    private static final int DEFAULT_GETTERS = 8;
+    private static final int RANGE_CHUNKS = 64; // chunks per range request (~8 MB)
+    private static final long SEED = 42;
+
+    public static void main(String[] args) throws Exception {
+        long fileSize = (long)(physicalMemoryBytes() * MEMORY_FACTOR);
+        int getters = DEFAULT_GETTERS;
+        String directory = ".";
+        List<WriteMode> modes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--size": fileSize = Long.parseLong(args[++i]); break;
+                case "--getters": getters = Integer.parseInt(args[++i]); break;
+                case "--dir": directory = args[++i]; break;
+                default:
+                    WriteMode mode = WriteMode.fromName(args[i]);
+                    if (mode == null) throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                    modes.add(mode);
+            }
+        }
+        if (modes.isEmpty()) {
+            for (WriteMode mode : WriteMode.values()) modes.add(mode);
+        }
+        byte[] body = new byte[RANGE_CHUNKS * Chunk.CHUNK_SIZE];
+        new Random(SEED).nextBytes(body);
+
+        for (WriteMode mode : modes) {
+            File destination = new File(directory, "write-engine.bin.part");
+            FilePreallocator.preallocate(destination, fileSize);
+            System.gc();
+            resetPeakHeap();
+            long start = System.nanoTime();
+            writeFile(destination.getPath(), fileSize, getters, mode, body);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "mode=%s size_gb=%.2f getters=%d seconds=%.1f " +
+                            "mb_per_s=%.1f peak_heap_mb=%.1f", mode.name().toLowerCase(), fileSize / 1e9,
+                    getters, seconds, fileSize / 1e6 / seconds, peakHeapBytes() / 1e6));
+            System.gc(); // unmapping the dropped windows before deleting the file
+            destination.delete();
+            new File(destination.getPath() + ".tmp").delete();
+            new File(destination.getPath() + ".journal.tmp").delete();
+        }
+    }
+
+    /**
+     * Writes the whole file with the given engine: the getters' sinks, the writer threads in the buffered
+     * and streaming modes, and the metadata commits.
+     */
+    private static void writeFile(String destination, long fileSize, int getterCount, WriteMode mode, byte[] body)
+            throws Exception {
+        MetadataManager metadataManager = new MetadataManager(destination, fileSize, null);
+        ChunkManager chunkManager = new ChunkManager(fileSize);
+        DownloadStatus downloadStatus = new DownloadStatus(fileSize, false);
+        PriorityBlockingQueue<Chunk> chunkQueue = new PriorityBlockingQueue<>();
+        ChunkWriter writer = new ChunkWriter(destination, chunkQueue, metadataManager, chunkManager,
+                downloadStatus, null, null);
+        MappedDestination mappedDestination = null;
+        BufferPool bufferPool = null;
+        Thread writerThread = null;
+        if (mode == WriteMode.MAPPED) {
+            mappedDestination = new MappedDestination(destination, fileSize, chunkManager);
+            metadataManager.setMappedDestination(mappedDestination);
+        }
+        else {
+            if (mode == WriteMode.BUFFERED) {
+                bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_BUFFER_MB, Chunk.CHUNK_SIZE);
+            }
+            metadataManager.setDataChannel(writer.getDestinationChannel());
+            writerThread = new Thread(writer);
+            writerThread.start();
+        }
+
+        int chunkCount = chunkManager.getChunksCount();
+        AtomicInteger nextRange = new AtomicInteger();
+        MirrorStats mirror = new MirrorStats("http://127.0.0.1/write-engine.bin", TokenBucket.UNLIMITED);
+        TokenBucket unlimited = new TokenBucket(TokenBucket.UNLIMITED);
+        List<Thread> getters = new ArrayList<>();
+        Exception[] failure = new Exception[1];
+        for (int g = 0; g < getterCount; g++) {
+            MappedDestination mapped = mappedDestination;
+            BufferPool pool = bufferPool;
+            Thread getter = new Thread(() -> {
+                Http1Transport transport = new Http1Transport(new ConnectionStats());
+                try {
+                    int first;
+                    while ((first = nextRange.getAndAdd(RANGE_CHUNKS)) < chunkCount) {
+                        int span = Math.min(RANGE_CHUNKS, chunkCount - first);
+                        for (int i = first; i < first + span; i++) {
+                            chunkManager.markInFlight(i);
+                        }
+                        ChunkRange chunkRange = new ChunkRange(first, span, fileSize, chunkCount);
+                        InFlightRange range = new InFlightRange(chunkRange);
+                        range.setMirror(mirror);
+                        RangeSink sink;
+                        if (mode == WriteMode.MAPPED) {
+                            sink = new RangeSink(range, chunkManager, writer, downloadStatus, unlimited, mapped);
+                        }
+                        else if (mode == WriteMode.STREAMING) {
+                            sink = new RangeSink(range, chunkManager, chunkQueue, downloadStatus, unlimited,
+                                    writer.getDestinationChannel());
+                        }
+                        else {
+                            sink = new RangeSink(range, chunkManager, chunkQueue, downloadStatus, unlimited, pool);
+                        }
+                        transport.readBody(new ByteArrayInputStream(body, 0, (int)chunkRange.size()), sink);
+                    }
+                }
+                catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            getters.add(getter);
+            getter.start();
+        }
+        for (Thread getter : getters) {
+            getter.join();
+        }
+        if (writerThread != null) {
+            writerThread.join();
+        }
+        metadataManager.commit();
+        writer.closeWriter();
+        if (mappedDestination != null) {
+            mappedDestination.close();
+        }
+        metadataManager.clearFiles();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        if (chunkManager.countChunks(ChunkManager.WRITTEN) != chunkCount) {
+            throw new IllegalStateException("Some chunks were not written.");
+        }
+    }
+
+    /**
+     * @returns the physical memory size, in bytes, or 4 GB if the JVM does not report it.
+     */
+    @SuppressWarnings("deprecation")
+    private static long physicalMemoryBytes() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return 4L << 30;
+    }
+
+    private static void resetPeakHeap() {
+        for (java.lang.management.MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @returns the sum of the peak usages of the heap memory pools since the last reset, in bytes.
+     */
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (java.lang.management.MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == java.lang.management.MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/bash
+# Runs the end-to-end benchmark (EndToEndBenchmark), built with Maven, against four local mirrors:
+# a fast one, a distant one (latency and jitter), a bandwidth-capped one and a flaky one (drops and errors).
+# The results are kept in target/bench/e2e-<date>.txt, unless RESULTS is set. With BASELINE set to the
+# results of a previous run, the run fails (status 2) if its median throughput dropped past THRESHOLD percent.
+# usage: bench/run-e2e.sh [EndToEndBenchmark options...] [-- DOWNLOAD-OPTION...]
+# e.g. BASELINE=target/bench/e2e-20260101-120000.txt bench/run-e2e.sh -- --transport http2
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+RESULTS=${RESULTS:-$ROOT/target/bench/e2e-$(date +%Y%m%d-%H%M%S).txt}
+THRESHOLD=${THRESHOLD:-10}
+
+mvn -B -q -f "$ROOT/pom.xml" compile
+mkdir -p "$(dirname "$RESULTS")"
+"$JAVA" -cp "$ROOT/target/src/classes:$ROOT/target/bench/classes" EndToEndBenchmark \
+    --server "" \
+    --server "latency=40,jitter=30" \
+    --server "bandwidth=30M,latency=5" \
+    --server "latency=10,drop=0.05,error=0.05" \
+    --results "$RESULTS" --threshold "$THRESHOLD" ${BASELINE:+--baseline "$BASELINE"} "$@"
+echo "results: $RESULTS"
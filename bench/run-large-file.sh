@@ -0,0 +1,12 @@
+#!/bin/bash
+# Checks a download larger than 4 GB end to end (LargeFileCheck), built with Maven: a sparse source file
+# with markers across the 2 GB and 4 GB boundaries is served by a local BenchRangeServer, downloaded in
+# each write mode, then killed midway and resumed, and each copy is compared with the source.
+# The copies are written in DIR (a temporary directory by default), which needs room for the whole file.
+# usage: bench/run-large-file.sh [--size BYTES] [--connections N] [--dir DIR] [MODE...]
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+mvn -B -q -f "$ROOT/pom.xml" compile
+"$JAVA" -cp "$ROOT/target/src/classes:$ROOT/target/bench/classes" LargeFileCheck "$@"
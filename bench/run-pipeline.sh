@@ -0,0 +1,14 @@
+#!/bin/bash
+# Runs the chunk pipeline micro-benchmarks (PipelineBenchmark), built with Maven, and keeps their results
+# as a JSON file in the JMH result format, to be compared over time (e.g. with a JMH visualizer).
+# usage: bench/run-pipeline.sh [--quick] [--filter NAME]
+# The results file is target/bench/pipeline-<date>.json, unless RESULTS is set.
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+RESULTS=${RESULTS:-$ROOT/target/bench/pipeline-$(date +%Y%m%d-%H%M%S).json}
+
+mvn -B -q -f "$ROOT/pom.xml" compile
+mkdir -p "$(dirname "$RESULTS")"
+"$JAVA" -cp "$ROOT/target/src/classes:$ROOT/target/bench/classes" PipelineBenchmark --json "$RESULTS" "$@"
+echo "results: $RESULTS"
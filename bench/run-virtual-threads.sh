@@ -0,0 +1,28 @@
+#!/bin/bash
+# Compares the platform thread pool with virtual threads at 1K-10K concurrent ranges, against a local
+# range server with simulated latency. Needs a Java 21 JDK (JAVA_HOME or the java on the PATH).
+# usage: bench/run-virtual-threads.sh [LATENCY-MS] [RANGES...]
+set -e
+LATENCY=${1:-200}
+shift || true
+RANGES=${@:-1000 2500 5000 10000}
+CHUNK_SIZE=128000
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+JAVAC=${JAVA_HOME:+$JAVA_HOME/bin/}javac
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+WORK=$(mktemp -d)
+trap 'kill $SERVER_PID 2>/dev/null || true; rm -rf "$WORK"' EXIT
+"$JAVAC" -nowarn -d "$WORK/classes" "$ROOT"/src/*.java "$ROOT"/bench/BenchRangeServer.java "$ROOT"/bench/VirtualThreadBenchmark.java
+
+for ranges in $RANGES; do
+    "$JAVA" -cp "$WORK/classes" BenchRangeServer 0 $((ranges * CHUNK_SIZE)) "$LATENCY" > "$WORK/server.out" &
+    SERVER_PID=$!
+    until grep -q "listening" "$WORK/server.out" 2>/dev/null; do sleep 0.1; done
+    PORT=$(awk '{print $4}' "$WORK/server.out")
+    for mode in platform virtual; do
+        (cd "$WORK" && "$JAVA" -cp "$WORK/classes" VirtualThreadBenchmark \
+            "http://127.0.0.1:$PORT/bench.bin" "$ranges" "$mode" 2>/dev/null)
+    done
+    kill $SERVER_PID; wait $SERVER_PID 2>/dev/null || true
+done
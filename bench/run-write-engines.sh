@@ -0,0 +1,11 @@
+#!/bin/bash
+# Compares the write engines (buffered, streaming and mapped) on a file larger than the memory
+# (WriteEngineBenchmark), built with Maven. The file is written in DIR (the current directory by default),
+# which needs room for 1.25 times the physical memory, unless --size is given.
+# usage: bench/run-write-engines.sh [--size BYTES] [--getters N] [--dir DIR] [MODE...]
+set -e
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+mvn -B -q -f "$ROOT/pom.xml" compile
+"$JAVA" -cp "$ROOT/target/src/classes:$ROOT/target/bench/classes" WriteEngineBenchmark "$@"
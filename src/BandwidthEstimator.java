@@ -0,0 +1,44 @@
+/**
+ * Estimates the bandwidth-delay product of a single connection from its measured requests,
+ * to decide how many consecutive chunks the connection should request at once.
+ * A range lasting several round trips amortizes the idle round trip of each request,
+ * while a connection without measurements yet starts with a single chunk.
+ * Thread safe: an asynchronous transport completes the requests on several threads.
+ */
+public class BandwidthEstimator {
+
+    private static final double SMOOTHING_FACTOR = 0.3; // weight of the latest measurement in the moving averages
+    private static final int ROUND_TRIPS_PER_RANGE = 8; // range duration target, in round trips
+    public static final int MAX_RANGE_CHUNKS = 64; // upper bound of chunks requested at once
+
+    private double bytesPerNano = 0; // moving average of the transfer rate
+    private double roundTripNanos = 0; // moving average of the time to first byte
+
+    /**
+     * Records the measurements of a completed range request.
+     * @param bytes - the number of bytes received.
+     * @param firstByteNanos - the time between sending the request and receiving the response headers.
+     * @param transferNanos - the time spent receiving the response body.
+     */
+    public synchronized void record(long bytes, long firstByteNanos, long transferNanos) {
+        double rate = (double)bytes / Math.max(1, transferNanos);
+        if (bytesPerNano == 0) {
+            bytesPerNano = rate;
+            roundTripNanos = firstByteNanos;
+        }
+        else {
+            bytesPerNano += SMOOTHING_FACTOR * (rate - bytesPerNano);
+            roundTripNanos += SMOOTHING_FACTOR * (firstByteNanos - roundTripNanos);
+        }
+    }
+
+    /**
+     * @returns the number of consecutive chunks the connection should request next,
+     * between 1 and {@MAX_RANGE_CHUNKS}.
+     */
+    public synchronized int getPreferredChunkCount() {
+        double targetBytes = bytesPerNano * roundTripNanos * ROUND_TRIPS_PER_RANGE;
+        long chunks = (long)Math.ceil(targetBytes / Chunk.CHUNK_SIZE);
+        return (int)Math.max(1, Math.min(MAX_RANGE_CHUNKS, chunks));
+    }
+}
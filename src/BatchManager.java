@@ -0,0 +1,138 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the files listed in a jobs file, a line per file:
+ *     URL[,URL...] | URL-LIST-FILE [DESTINATION]
+ * that is the servers of the file (a single URL, a group of mirrors separated by commas, or a .list
+ * file), optionally followed by the destination path (by default, the source file name in the current
+ * directory). Empty lines, and lines starting with '#', are ignored.
+ * All the files share a single DownloadContext: the same threads, connections, memory budget and rate
+ * limit, and a single connections budget for the ranges in flight of all the files. Up to
+ * {@parallelFiles} files are downloaded at once, started in the order of the jobs file; the active files
+ * take turns on the connections budget, so a huge file takes a single file slot and its share of the
+ * connections, while the small files keep flowing through the other slots.
+ * Each file keeps its own metadata, so an interrupted batch resumes every file where it stopped.
+ */
+public class BatchManager {
+
+    public static final int DEFAULT_PARALLEL_FILES = 4; // default number of files downloaded at once
+    private static final String COMMENT_PREFIX = "#";
+    private static final String MIRROR_SEPARATOR = ",";
+
+    private ProgramInput batchInput;
+    private List<ProgramInput> jobs;
+    private boolean jobsValid = true; // false if a digest of the hash file is not of the chosen hash algorithm
+    private DownloadContext context;
+
+    /**
+     * Creates the batch manager object, reading the jobs file.
+     * @param batchInput - the options given to the whole batch, along with the jobs file path.
+     */
+    public BatchManager(ProgramInput batchInput) {
+        this.batchInput = batchInput;
+        this.jobs = readJobs(batchInput.getBatchFile());
+    }
+
+    /**
+     * Parses the jobs file into the input of each job, applying the options of the whole batch.
+     * If the user gave a hash file, the expected digest of each file is read from it, and the jobs are
+     * rejected if a digest is not of the chosen hash algorithm.
+     * @param filePath - the jobs file path.
+     * @returns the input of the jobs, in the order of the file.
+     */
+    private List<ProgramInput> readJobs(String filePath) {
+        List<ProgramInput> result = new ArrayList<>();
+        String line;
+        try (BufferedReader fileReader = new BufferedReader(new FileReader(filePath))) {
+            while ((line = fileReader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(COMMENT_PREFIX)) continue;
+                String[] fields = line.split("\\s+", 2);
+                ArrayList<String> serverList = fields[0].contains(MIRROR_SEPARATOR) ?
+                        new ArrayList<>(List.of(fields[0].split(MIRROR_SEPARATOR))) :
+                        UserInputHandler.getServerAddresses(fields[0]);
+                if (serverList.isEmpty()) continue;
+                ProgramInput job = batchInput.forJob(serverList, (fields.length > 1) ? fields[1].trim() : null);
+                if (job.getHashFile() != null) {
+                    job.setExpectedHash(UserInputHandler.readHashFile(job.getHashFile(), job.getFileName()));
+                    jobsValid &= UserInputHandler.isMatchingDigest(job.getHashAlgorithm(), job.getExpectedHash(),
+                            job.getHashFile());
+                }
+                result.add(job);
+            }
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to read the jobs file.", e);
+        }
+        return result;
+    }
+
+    /**
+     * Downloads all the files of the batch, {@parallelFiles} at a time, then prints a summary.
+     * A file failing does not stop the others.
+     * @returns true if and only if all the files were downloaded.
+     */
+    public boolean startBatch() {
+        if (jobs.isEmpty()) {
+            ProgramPrinter.printMessage("No file to download in the jobs file.");
+            return false;
+        }
+        if (!jobsValid) {
+            return false;
+        }
+        int parallelFiles = Math.min(batchInput.getParallelFiles(), jobs.size());
+        ProgramPrinter.printBatchInitMessage(jobs.size(), parallelFiles, batchInput.getMaxConnections());
+        context = new DownloadContext(batchInput, true);
+        ExecutorService fileSlots = Executors.newFixedThreadPool(parallelFiles);
+        long startTime = System.nanoTime();
+        int succeededCount = 0;
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (ProgramInput job : jobs) {
+                results.add(fileSlots.submit(() -> downloadFile(job)));
+            }
+            for (Future<Boolean> result : results) {
+                if (result.get()) succeededCount++;
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            ProgramPrinter.printError("The batch was interrupted.", e);
+        }
+        finally {
+            fileSlots.shutdown();
+            context.close();
+        }
+        ConnectionStats connectionStats = context.getConnectionStats();
+        ProgramPrinter.printConnectionStats(connectionStats.getConnectCount(), connectionStats.getClientCount(),
+                connectionStats.getRequestCount(), connectionStats.getReuseRatio());
+        ProgramPrinter.printBatchSummary(succeededCount, jobs.size(), (System.nanoTime() - startTime) / 1e9);
+        return succeededCount == jobs.size();
+    }
+
+    /**
+     * Downloads a single file of the batch, with the resources shared by the batch.
+     * @param job - the input of the file's download.
+     * @returns true if and only if the file was downloaded.
+     */
+    private boolean downloadFile(ProgramInput job) {
+        boolean succeeded;
+        try {
+            succeeded = new DownloadManager(job, context).startDownload();
+        }
+        catch (RuntimeException e) {
+            ProgramPrinter.printMessage(String.format("Unexpected error while downloading %s:\n%s",
+                    job.getFileName(), e.getLocalizedMessage()));
+            succeeded = false;
+        }
+        ProgramPrinter.printBatchFileResult(job.getFileName(), succeeded);
+        return succeeded;
+    }
+}
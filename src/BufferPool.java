@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable direct byte buffers, shared between the getters and the writer.
+ * Buffers are allocated lazily up to the pool capacity. Once the capacity is reached, acquiring a
+ * buffer blocks until the writer returns one, which applies back-pressure on the getters whenever
+ * the network is faster than the disk.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_MAX_BUFFER_MB = 64; // default memory budget for buffered chunks
+    private static final int BYTES_IN_MB = 1024 * 1024;
+
+    private final int bufferSize;
+    private final int capacity;
+    private final AtomicInteger allocatedCount = new AtomicInteger(0);
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+
+    /**
+     * Creates a pool holding at most <maxBufferMB> megabytes of buffers of <bufferSize> bytes each.
+     * The pool always holds at least a single buffer, so the download can progress with any budget.
+     * @param maxBufferMB - the memory budget of the pool, in megabytes.
+     * @param bufferSize - the size of each buffer in bytes.
+     */
+    public BufferPool(int maxBufferMB, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.capacity = (int)Math.max(1, ((long)maxBufferMB * BYTES_IN_MB) / bufferSize);
+        this.freeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool capacity allows it.
+     * Blocks until a buffer is released if all the buffers are in use.
+     * @returns an empty buffer of {@bufferSize} bytes.
+     * @throws InterruptedException if interrupted while waiting for a buffer.
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = tryAcquire();
+        return (buffer != null) ? buffer : freeBuffers.take();
+    }
+
+    /**
+     * Takes a cleared buffer from the pool without blocking, allocating a new one if the pool capacity allows it.
+     * @returns an empty buffer of {@bufferSize} bytes, or null if all the buffers are in use.
+     */
+    public ByteBuffer tryAcquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocatedCount.getAndIncrement() < capacity) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        allocatedCount.decrementAndGet();
+        return null;
+    }
+
+    /**
+     * Returns the given buffer to the pool, waking up a getter waiting for one.
+     * @param buffer - a buffer previously acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+
+    /* GETTERS & SETTERS */
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @returns the number of buffers taken from the pool and not released yet.
+     */
+    public int getBuffersInUse() {
+        return allocatedCount.get() - freeBuffers.size();
+    }
+}
@@ -1,10 +1,14 @@
+import java.nio.ByteBuffer;
+
 public class Chunk implements Comparable<Chunk> {
 
     public static final int CHUNK_SIZE = 128000; // chunk size in bytes
     private int chunkID;
-    private byte[] data;
+    private ByteBuffer data;
+    private BufferPool bufferPool;
     private ChunkRange range;
     private boolean isCompleted;
+    private int checksum; // CRC-32C of the chunk's data, computed by its getter
 
     /**
      * Creating a chunk object with the given ID and status.
@@ -19,30 +23,50 @@ public class Chunk implements Comparable<Chunk> {
     }
 
     /**
-     * Creates a chunk object containing {@CHUNK_SIZE} bytes of data, and
-     * a status indicating whether it was downloaded or not.
-     * @param chunkData
+     * Creates a chunk object containing up to {@CHUNK_SIZE} bytes of data, held in a buffer
+     * taken from the given pool, and a status indicating whether it was downloaded or not.
+     * @param chunkData - a flipped buffer holding the chunk's data.
      * @param range - ChunkRange object to indicate the range to download.
+     * @param bufferPool - the pool to return the buffer to once the data is cleared.
      */
-    public Chunk(int chunkID, byte[] chunkData, ChunkRange range) {
+    public Chunk(int chunkID, ByteBuffer chunkData, ChunkRange range, BufferPool bufferPool) {
         this.chunkID = chunkID;
         this.isCompleted = false;
         this.data = chunkData;
+        this.bufferPool = bufferPool;
         this.range = range;
     }
 
     /**
-     * Enables the program to clear data which was already successfully written to disk.
+     * Creates a completion notice for a chunk whose data was already streamed to the
+     * destination file by its getter, so the chunk itself carries no data.
+     * @param chunkID
+     * @param range - ChunkRange object indicating the range that was written.
+     */
+    public Chunk(int chunkID, ChunkRange range) {
+        this(chunkID, null, range, null);
+    }
+
+    /**
+     * Enables the program to clear data which was already successfully written to disk,
+     * returning the chunk's buffer to its pool for reuse.
      */
     public void clearData() {
+        if (data != null && bufferPool != null) {
+            bufferPool.release(data);
+        }
         data = null;
     }
 
     /* GETTERS & SETTERS */
 
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
+
+    public boolean hasData() {
+        return data != null;
+    }
     public boolean isCompleted() {
         return isCompleted;
     }
@@ -55,12 +79,20 @@ public class Chunk implements Comparable<Chunk> {
         return this.range.start();
     }
 
-    public long getSize() { return this.data.length; }
+    public long getSize() { return hasData() ? this.data.limit() : this.range.size(); }
 
     public int getID() { return this.chunkID; }
 
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(int checksum) {
+        this.checksum = checksum;
+    }
+
     @Override
     public int compareTo(Chunk o) {
-        return (int)(this.getStartPosition() - o.getStartPosition());
+        return Long.compare(this.getStartPosition(), o.getStartPosition());
     }
 }
@@ -1,142 +1,218 @@
-import java.io.*;
-import java.net.*;
-import java.util.List;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 
 public class ChunkGetter implements Runnable {
 
-    private final int BYTE_BUFFER_SIZE = 4096; // buffer size (in bytes) used when reading a range content
-    private final int CONNECTION_TIMEOUT = 2000; // max wait time (in ms) for trying to connect/read to/from a the server
-    private final String REQUEST_TYPE = "Range"; // HTTP range request method name
-
-    private int chunkIndex;
-    private String serverAddress;
-    private List<String> serverList;
-    private ChunkRange range;
+    private ChunkScheduler chunkScheduler;
     private ChunkManager chunkManager;
     private PriorityBlockingQueue<Chunk> chunkQueue;
+    private DownloadStatus downloadStatus;
     private DownloadManager downloadManager;
+    private Transport transport;
+    private TokenBucket rateLimit;
+    private FileChannel destinationChannel;
+    private BufferPool bufferPool;
+    private ChunkWriter chunkWriter; // records the completed chunks, in mapped mode
+    private MappedDestination mappedDestination;
+    private Map<String, BandwidthEstimator> bandwidthEstimators = new ConcurrentHashMap<>(); // per server connection
+    private Set<CompletableFuture<Void>> transfers = ConcurrentHashMap.newKeySet(); // the ranges being fetched
 
     /**
-     * Initializes a HTTP getters object.
-     * @param serverList - the servers list of address.
-     * @param range - ChunkRange object to hold the download range for this getter.
-     * @param chunkIndex - the index of the chunk to be downloaded by this getter.
+     * Initializes a long-lived HTTP getter object, downloading the chunks handed out by the scheduler
+     * with the given transport.
+     * @param chunkScheduler - the shared source of the chunks to download.
      * @param chunkManager - a reference to object tracking the chunk downloaded.
      * @param chunkQueue - a reference to priority queue handling chunks waiting to be written to disk.
+     * @param downloadStatus - the download status, counting the received bytes.
      * @param downloadManager - a reference to the download manager object.
+     * @param transport - the transport fetching the ranges.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param bufferPool - the pool to take the chunks' data buffers from.
      */
-    public ChunkGetter(List<String> serverList, ChunkRange range, int chunkIndex,
+    public ChunkGetter(ChunkScheduler chunkScheduler,
                        ChunkManager chunkManager, PriorityBlockingQueue<Chunk> chunkQueue,
-                       DownloadManager downloadManager) {
-        this.serverList = serverList;
-        this.chunkIndex = chunkIndex;
-        this.range = range;
+                       DownloadStatus downloadStatus, DownloadManager downloadManager, Transport transport,
+                       TokenBucket rateLimit, BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.chunkScheduler = chunkScheduler;
         this.chunkManager = chunkManager;
         this.chunkQueue = chunkQueue;
+        this.downloadStatus = downloadStatus;
         this.downloadManager = downloadManager;
+        this.transport = transport;
+        this.rateLimit = rateLimit;
     }
 
     /**
-     * Start downloading the chunk allocated for this getter.
+     * Initializes a HTTP getter object working in streaming mode: the downloaded data is written
+     * directly into the destination file, and only a completion notice is enqueued.
+     * @param chunkScheduler - the shared source of the chunks to download.
+     * @param chunkManager - a reference to object tracking the chunk downloaded.
+     * @param chunkQueue - a reference to priority queue handling chunks completion notices.
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param downloadManager - a reference to the download manager object.
+     * @param transport - the transport fetching the ranges.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param destinationChannel - the destination file channel to write the ranges into.
      */
-    @Override
-    public void run() {
-        int threadID = (int)Thread.currentThread().getId();
-        serverAddress =  calculateThreadServerAddress(threadID, serverList);
-        HttpURLConnection connection = initConnection();
-        byte[] downloadedData = downloadChunk(connection);
-        saveDownloadedData(downloadedData);
+    public ChunkGetter(ChunkScheduler chunkScheduler,
+                       ChunkManager chunkManager, PriorityBlockingQueue<Chunk> chunkQueue,
+                       DownloadStatus downloadStatus, DownloadManager downloadManager, Transport transport,
+                       TokenBucket rateLimit, FileChannel destinationChannel) {
+        this(chunkScheduler, chunkManager, chunkQueue, downloadStatus, downloadManager, transport, rateLimit,
+                (BufferPool) null);
+        this.destinationChannel = destinationChannel;
     }
 
     /**
-     * Determines to which server the given thread will connect.
-     * @param threadID
-     * @param serverList
-     * @returns the server address' index in the server list.
+     * Initializes a HTTP getter object working in mapped mode: the downloaded data is copied into the mapped
+     * destination file, and the getter records the completed chunks itself, through the writer.
+     * @param chunkScheduler - the shared source of the chunks to download.
+     * @param chunkManager - a reference to object tracking the chunk downloaded.
+     * @param chunkWriter - the writer recording the completed chunks, without running its own thread.
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param downloadManager - a reference to the download manager object.
+     * @param transport - the transport fetching the ranges.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param mappedDestination - the mapped destination file to copy the ranges into.
      */
-    private String calculateThreadServerAddress(int threadID, List<String> serverList) {
-        int serverAddressIndex = threadID % serverList.size();
-        return serverList.get(serverAddressIndex);
+    public ChunkGetter(ChunkScheduler chunkScheduler, ChunkManager chunkManager, ChunkWriter chunkWriter,
+                       DownloadStatus downloadStatus, DownloadManager downloadManager, Transport transport,
+                       TokenBucket rateLimit, MappedDestination mappedDestination) {
+        this(chunkScheduler, chunkManager, (PriorityBlockingQueue<Chunk>) null, downloadStatus, downloadManager,
+                transport, rateLimit, (BufferPool) null);
+        this.chunkWriter = chunkWriter;
+        this.mappedDestination = mappedDestination;
     }
 
     /**
-     * Establishing a HTTP connection to the server for downloading the data.
-     * @return a HTTP connection to the server.
+     * Keeps downloading the ranges handed out by the scheduler until none is left. The scheduler chooses
+     * the server of each range, and sizes the range by the measured bandwidth-delay product of this
+     * getter's connection to that server.
+     * With a synchronous transport each range is fetched before the next one is claimed. With an
+     * asynchronous transport this getter dispatches the ranges as fast as the scheduler hands them out,
+     * and waits for the ranges still being fetched before leaving, since a failed one is handed out again.
+     * The download is interrupted only once all the servers are down for too long.
      */
-    private HttpURLConnection initConnection() {
-        HttpURLConnection connection = null;
+    @Override
+    public void run() {
         try {
-            URL url = new URL(this.serverAddress);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            connection.setReadTimeout(CONNECTION_TIMEOUT);
-        }
-        catch (MalformedURLException e) {
-            ProgramPrinter.printError("Invalid URL address given as input.", e);
+            do {
+                InFlightRange range;
+                while ((range = chunkScheduler.nextRange(this::getPreferredChunkCount)) != null) {
+                    downloadRange(range);
+                }
+            } while (awaitTransfer());
         }
         catch (IOException e) {
-            // suppressing connection or network interruptions errors and terminating the program
             downloadManager.interruptDownload();
         }
-        return connection;
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            downloadManager.interruptDownload();
+        }
     }
 
     /**
-     * Establish an HTTP connection and start downloading chunk
-     * number <chunkIndex> of the entire file.
-     * @param connection - the HTTP connection to use for downloading the data.
-     * @return A byte array with the downloaded data.
+     * Blocks until one of the ranges being fetched is done. The ranges already done are dropped first: a
+     * range is removed from the set by a stage running after its completion, so it may still be there.
+     * @returns false if no range was being fetched.
      */
-    private byte[] downloadChunk(HttpURLConnection connection) {
-        String byteRange = this.range.httpByteRange();
-        try {
-            connection.setRequestProperty(REQUEST_TYPE, byteRange);
-            InputStream connectionInputStream = connection.getInputStream();
-            return this.readByteRange(connectionInputStream);
-        }
-        catch (IOException e) {
-            // suppressing connection or network interruptions errors and terminating the program
-            downloadManager.interruptDownload();
+    private boolean awaitTransfer() {
+        transfers.removeIf(CompletableFuture::isDone);
+        if (transfers.isEmpty()) {
+            return false;
         }
-        finally {
-            connection.disconnect();
-        }
-        return null;
+        CompletableFuture.anyOf(transfers.toArray(new CompletableFuture<?>[0])).join();
+        return true;
     }
 
     /**
-     * Reads the entire Http range into a byte array from the given input stream.
-     * @param connectionInputStream - the file's input stream.
-     * @returns a byte array with the downloaded data.
+     * @param mirror - a server of the file.
+     * @returns the number of chunks this getter would like to download at once from the given server.
      */
-    private byte[] readByteRange(InputStream connectionInputStream) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] chunkBuffer = new byte[BYTE_BUFFER_SIZE];
-        int bytesRead;
+    private int getPreferredChunkCount(MirrorStats mirror) {
+        return getBandwidthEstimator(mirror).getPreferredChunkCount();
+    }
 
-        try {
-            while ((bytesRead = connectionInputStream.read(chunkBuffer)) > 0) {
-                out.write(chunkBuffer, 0, bytesRead);
-            }
+    /**
+     * @param mirror - a server of the file.
+     * @returns the bandwidth estimator of this getter's connection to the given server.
+     */
+    private BandwidthEstimator getBandwidthEstimator(MirrorStats mirror) {
+        return bandwidthEstimators.computeIfAbsent(mirror.getAddress(), key -> new BandwidthEstimator());
+    }
+
+    /**
+     * Fetches the given range with a single request to its server, into a sink handing each of its chunks
+     * over to the writer as soon as the chunk is received.
+     * The range is finished (see {@finishRange}) once the transport is done with it.
+     * @param inFlightRange - the range of consecutive chunks to download.
+     */
+    private void downloadRange(InFlightRange inFlightRange) {
+        RangeSink sink;
+        if (mappedDestination != null) {
+            sink = new RangeSink(inFlightRange, chunkManager, chunkWriter, downloadStatus, rateLimit,
+                    mappedDestination);
         }
-        catch (IOException e) {
-            // suppressing connection or network interruptions errors and terminating the program
-            downloadManager.interruptDownload();
+        else if (destinationChannel != null) {
+            sink = new RangeSink(inFlightRange, chunkManager, chunkQueue, downloadStatus, rateLimit,
+                    destinationChannel);
         }
-        return out.toByteArray();
+        else {
+            sink = new RangeSink(inFlightRange, chunkManager, chunkQueue, downloadStatus, rateLimit, bufferPool);
+        }
+        long requestTime = System.nanoTime();
+        CompletableFuture<Void> transfer = transport.fetch(inFlightRange.getRange(),
+                inFlightRange.getMirror().getAddress(), sink)
+                .handle((result, error) -> {
+                    finishRange(inFlightRange, sink, requestTime, error);
+                    return null;
+                });
+        transfers.add(transfer);
+        transfer.thenRun(() -> transfers.remove(transfer));
     }
 
     /**
-     * Creates a new Chunk object with the given downloaded data,
-     * stores it at the chunks table in the correct index, and adding it
-     * to the queue of the chunks waiting to be written to disk.
-     * @param downloadedData - the data downloaded by this getters.
+     * Records the request's measurements for the server, and hands the range back to the scheduler.
+     * If the request failed, the chunks not completely received are handed back for a retry.
+     * @param inFlightRange - the fetched range.
+     * @param sink - the sink the range was fetched into.
+     * @param requestTime - the time (in ns) the request was sent.
+     * @param error - the request's error, or null if it succeeded.
      */
-    private void saveDownloadedData(byte[] downloadedData) {
-        Chunk c = new Chunk(chunkIndex, downloadedData, this.range);
-        this.chunkManager.setChunkAt(this.chunkIndex, c);
-        this.chunkQueue.put(c);
+    private void finishRange(InFlightRange inFlightRange, RangeSink sink, long requestTime, Throwable error) {
+        MirrorStats mirror = inFlightRange.getMirror();
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null) {
+            long responseTime = sink.getResponseTime();
+            long transferTime = System.nanoTime() - responseTime;
+            getBandwidthEstimator(mirror).record(inFlightRange.getBytesRead(), responseTime - requestTime, transferTime);
+            mirror.recordSuccess(inFlightRange.getBytesRead(), responseTime - requestTime, transferTime);
+            chunkScheduler.complete(inFlightRange);
+            return;
+        }
+        sink.close();
+        if (error instanceof InterruptedException) {
+            chunkScheduler.complete(inFlightRange);
+            downloadManager.interruptDownload();
+            return;
+        }
+        // connection or network errors, and invalid responses: the range is retried, possibly on another server
+        if (mirror.recordFailure()) {
+            Exception cause = (error instanceof Exception) ? (Exception) error : new Exception(error);
+            ProgramPrinter.printMirrorQuarantined(mirror.getAddress(),
+                    mirror.getQuarantinedUntil() - System.currentTimeMillis(), cause);
+        }
+        chunkScheduler.retry(inFlightRange);
     }
 
 }
@@ -1,68 +1,141 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Tracks the state of every chunk of the file in a primitive array (4 bytes per chunk), so the
+ * memory used does not depend on the chunks' data, and no object is kept per chunk.
+ * A chunk moves forward only, through compare-and-set transitions which are safe to call from any
+ * thread and visible to all of them:
+ * PENDING (to download) -> IN_FLIGHT (handed out to a getter) -> DOWNLOADED (handed over to the writer)
+ * -> WRITTEN (written to the destination file, in this run or a previous one).
+ */
 public class ChunkManager {
 
-    private Chunk[] chunkTable;
+    // chunk states
+    public static final int PENDING = 0;
+    public static final int IN_FLIGHT = 1;
+    public static final int DOWNLOADED = 2;
+    public static final int WRITTEN = 3;
+
+    private AtomicIntegerArray chunkStates;
+    private final LongAdder downloadedCount = new LongAdder(); // chunks downloaded in this run
+    private final LongAdder writtenCount = new LongAdder(); // chunks written in this run
 
     /**
-     * Creates an array of Chunks to track the downloaded data chunks.
+     * Creates a table of pending chunks to track the downloaded data chunks.
      * @param fileSize - the total file size to be downloaded in bytes.
      */
     public ChunkManager(long fileSize) {
         int tableSize = (int)Math.ceil((double)fileSize / Chunk.CHUNK_SIZE);
-        this.chunkTable = new Chunk[tableSize];
+        this.chunkStates = new AtomicIntegerArray(tableSize);
     }
 
     /**
-     * Creates an array of Chunks from a loaded MinifiedChunkTable object. The method will
-     * create a completed Chunk object for each Chunk marked as completed in the minified table.
+     * Creates a table from a loaded MinifiedChunkTable object. The chunks completed by a previous run
+     * are read from the minified table's bitmap words, skipping empty words.
      * @param minifiedTable
      */
     public ChunkManager(MinifiedChunkTable minifiedTable) {
-        this.chunkTable = new Chunk[minifiedTable.getChunkCount()];
-        for (int i = 0; i < minifiedTable.getChunkCount(); i++) {
-            boolean chunkStatus = minifiedTable.getElementAt(i);
-            if (chunkStatus) {
-                this.setChunkAt(i, new Chunk(i, true));
+        this.chunkStates = new AtomicIntegerArray(minifiedTable.getChunkCount());
+        LongBuffer words = minifiedTable.getWords();
+        for (int w = 0; w < words.limit(); w++) {
+            long word = words.get(w);
+            while (word != 0) {
+                int index = w * Long.SIZE + Long.numberOfTrailingZeros(word);
+                if (index >= chunkStates.length()) {
+                    break; // the padding bits of the last word, never set by a valid table
+                }
+                chunkStates.set(index, WRITTEN);
+                word &= word - 1;
             }
         }
     }
 
     /**
-     * @returns an integer array containing all the IDs (indices) of the completed Chunks.
+     * Hands out a pending chunk to a getter.
+     * @returns true if and only if the chunk was pending, and is now in flight.
      */
-    public int[] getCompletedChunksIDs() {
-        List<Integer> completedIDs = new ArrayList<>();
-        for (int i = 0; i < chunkTable.length; i++) {
-            if (chunkTable[i] != null) completedIDs.add(i);
+    public boolean markInFlight(int index) {
+        return chunkStates.compareAndSet(index, PENDING, IN_FLIGHT);
+    }
+
+    /**
+     * Registers an in-flight chunk as downloaded, before it is handed over to the writer.
+     * @returns true if and only if the chunk was in flight, false if it was already downloaded.
+     */
+    public boolean markDownloaded(int index) {
+        if (chunkStates.compareAndSet(index, IN_FLIGHT, DOWNLOADED)) {
+            downloadedCount.increment();
+            return true;
         }
-        return completedIDs.stream().mapToInt(Integer::intValue).toArray();
+        return false;
     }
 
     /**
-     * @returns an integer array containing all the IDs (indices) of the Chunks which are yet to be downloaded.
+     * Registers a downloaded chunk as written to the destination file.
+     * @returns true if and only if the chunk was downloaded, and is now written.
      */
-    public int[] getRemainingChunkIDs() {
-        List<Integer> remainingIDs = new ArrayList<>();
-        for (int i = 0; i < chunkTable.length; i++) {
-            if (chunkTable[i] == null) remainingIDs.add(i);
+    public boolean markWritten(int index) {
+        if (chunkStates.compareAndSet(index, DOWNLOADED, WRITTEN)) {
+            writtenCount.increment();
+            return true;
         }
-        return remainingIDs.stream().mapToInt(Integer::intValue).toArray();
+        return false;
     }
 
-    /* GETTERS & SETTERS */
+    /**
+     * @returns the number of chunks downloaded but not written yet, counted without scanning the table.
+     */
+    public long getUnwrittenCount() {
+        return downloadedCount.sum() - writtenCount.sum();
+    }
 
-    public int getChunksCount() {
-        return chunkTable.length;
+    /**
+     * Allocation-free iteration over the pending chunks:
+     * for (int i = nextPendingChunk(0); i >= 0; i = nextPendingChunk(i + 1)).
+     * @param fromIndex - the index to start looking from (inclusive).
+     * @returns the index of the first pending chunk from <fromIndex> on, or -1 if there is none.
+     */
+    public int nextPendingChunk(int fromIndex) {
+        for (int i = fromIndex; i < chunkStates.length(); i++) {
+            if (chunkStates.get(i) == PENDING) return i;
+        }
+        return -1;
     }
 
-    public Chunk getChunkAt(int index) {
-        return chunkTable[index];
+    /**
+     * @returns the number of chunks in the given state.
+     */
+    public int countChunks(int state) {
+        int count = 0;
+        for (int i = 0; i < chunkStates.length(); i++) {
+            if (chunkStates.get(i) == state) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param fileSize - the total file size in bytes.
+     * @returns the total size (in bytes) of the written Chunks, the last one being possibly shorter.
+     */
+    public long getCompletedBytes(long fileSize) {
+        int lastIndex = chunkStates.length() - 1;
+        long completedBytes = (long)countChunks(WRITTEN) * Chunk.CHUNK_SIZE;
+        if (lastIndex >= 0 && chunkStates.get(lastIndex) == WRITTEN) {
+            completedBytes -= (long)chunkStates.length() * Chunk.CHUNK_SIZE - fileSize;
+        }
+        return completedBytes;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public int getChunksCount() {
+        return chunkStates.length();
     }
 
-    public void setChunkAt(int index, Chunk newChunk) {
-        chunkTable[index] = newChunk;
+    public int getChunkState(int index) {
+        return chunkStates.get(index);
     }
 
 }
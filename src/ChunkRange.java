@@ -1,10 +1,17 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class ChunkRange {
 
     private static final String BYTES_RANGE_FORMAT = "bytes=%d-%d"; // the HTTP Range request string format.
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)"); // Content-Range value
 
     private long fileSize;
     private int totalChunkCount;
     private int chunkIndex;
+    private int chunkSpan; // the number of consecutive chunks covered by this range
     private long startPosition;
     private long endPosition;
 
@@ -15,32 +22,62 @@ public class ChunkRange {
      * @param totalChunkCount - the total number of chunks in the file.
      */
     public ChunkRange(int chunkIndex, long fileSize, int totalChunkCount) {
+        this(chunkIndex, 1, fileSize, totalChunkCount);
+    }
+
+    /**
+     * Creates a ChunkRange object covering several consecutive chunks, downloaded with a single request.
+     * @param chunkIndex - the index of the first chunk.
+     * @param chunkSpan - the number of consecutive chunks in the range.
+     * @param fileSize - the total file size to be downloaded.
+     * @param totalChunkCount - the total number of chunks in the file.
+     */
+    public ChunkRange(int chunkIndex, int chunkSpan, long fileSize, int totalChunkCount) {
         this.totalChunkCount = totalChunkCount;
         this.chunkIndex = chunkIndex;
+        this.chunkSpan = chunkSpan;
         this.fileSize = fileSize;
         calculateRange();
     }
 
     /**
-     * Sets the range positions according to the chunk size. If the chunk is the last chunk
+     * Sets the range positions according to the chunk size. If the range ends with the last chunk
      * of the file, the function calculates the reminder size to avoid writing excess bytes.
+     * Positions are computed in long arithmetic, as files may be larger than 2 GB.
      */
     private void calculateRange() {
         if (!lastChunk()) {
-            startPosition = chunkIndex * Chunk.CHUNK_SIZE;
-            endPosition = startPosition + Chunk.CHUNK_SIZE - 1;
+            startPosition = (long)chunkIndex * Chunk.CHUNK_SIZE;
+            endPosition = startPosition + (long)chunkSpan * Chunk.CHUNK_SIZE - 1;
         }
         else {
-            startPosition = chunkIndex * Chunk.CHUNK_SIZE;
-            endPosition = startPosition + (fileSize % Chunk.CHUNK_SIZE);
+            startPosition = (long)chunkIndex * Chunk.CHUNK_SIZE;
+            endPosition = fileSize - 1;
         }
     }
 
     /**
-     * @returns true if and only if this is the last chunk of the file, false otherwise.
+     * @returns true if and only if this range ends with the last chunk of the file, false otherwise.
      */
     private boolean lastChunk() {
-        return (this.chunkIndex == this.totalChunkCount - 1);
+        return (getLastChunkIndex() == this.totalChunkCount - 1);
+    }
+
+    /**
+     * @param index - the index of a chunk covered by this range.
+     * @returns the range of the single chunk number <index>.
+     */
+    public ChunkRange chunkAt(int index) {
+        return new ChunkRange(index, fileSize, totalChunkCount);
+    }
+
+    /**
+     * @param index - the index of the first chunk of the sub range, covered by this range.
+     * @param span - the number of chunks in the sub range.
+     * @returns the range of <span> consecutive chunks starting at chunk number <index>.
+     */
+    public ChunkRange subRange(int index, int span) {
+        return new ChunkRange(index, span, fileSize, totalChunkCount);
     }
 
     /**
@@ -50,8 +87,53 @@ public class ChunkRange {
         return String.format(BYTES_RANGE_FORMAT, this.startPosition, this.endPosition);
     }
 
+    /**
+     * Checks that a response to the request of this range carries exactly this range, so its body is never
+     * written at the wrong position: a partial response (206) must report this range, of a file of the
+     * probed size, and a whole file response (200, only accepted for the first chunk) must be of the probed size.
+     * @param status - the response status code.
+     * @param contentRange - the Content-Range header value, or null if there is none.
+     * @param contentLength - the Content-Length header value, or -1 if there is none.
+     * @throws IOException if the response carries other bytes than this range.
+     */
+    public void checkResponse(int status, String contentRange, long contentLength) throws IOException {
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            if (contentLength >= 0 && contentLength != fileSize) {
+                throw new IOException(String.format("The server sent a file of %d bytes instead of %d.",
+                        contentLength, fileSize));
+            }
+            return;
+        }
+        Matcher range = (contentRange != null) ? CONTENT_RANGE.matcher(contentRange.trim()) : null;
+        if (range == null || !range.matches()) {
+            throw new IOException("Invalid Content-Range in the partial response: " + contentRange);
+        }
+        try {
+            boolean sameTotal = range.group(3).equals("*") || Long.parseLong(range.group(3)) == fileSize;
+            if (Long.parseLong(range.group(1)) != startPosition || Long.parseLong(range.group(2)) != endPosition ||
+                    !sameTotal) {
+                throw new IOException(String.format("The server sent the range %s instead of %s/%d.",
+                        contentRange, httpByteRange(), fileSize));
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range in the partial response: " + contentRange, e);
+        }
+        if (contentLength >= 0 && contentLength != size()) {
+            throw new IOException(String.format("The server sent %d bytes for a range of %d.", contentLength, size()));
+        }
+    }
+
     /* GETTERS & SETTERS */
 
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public int getLastChunkIndex() {
+        return chunkIndex + chunkSpan - 1;
+    }
+
     public long start() {
         return startPosition;
     }
@@ -61,6 +143,6 @@ public class ChunkRange {
     }
 
     public long size() {
-        return this.endPosition - this.startPosition;
+        return this.endPosition - this.startPosition + 1;
     }
 }
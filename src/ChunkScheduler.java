@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * The single source of work for the getters, deciding what each getter downloads next and from which
+ * mirror. The work is handed out by priority:
+ * 1. the unread remainder of a failed range, once its jittered exponential backoff passed, sent to another
+ *    mirror than the one it failed on whenever possible;
+ * 2. the next pending chunks of the chunk state table, claimed from an atomic cursor walking the table
+ *    in file order. Each getter asks for a range size matching its measured bandwidth-delay product with
+ *    the chosen mirror, and the ranges shrink again towards the end of the download so the last chunks
+ *    are spread over all the getters;
+ * 3. once every chunk was handed out, the unread half of the slowest range still in flight (end-game mode),
+ *    so the download does not hang on a single slow connection.
+ * The scheduler keeps no per-chunk structure of its own: its startup time and memory do not depend
+ * on the file size. The number of ranges in flight is bounded by a semaphore, so the connections limit
+ * holds however the getters are run (a fixed pool of platform threads, or a virtual thread each).
+ * In batch mode the ranges in flight of all the files are also bounded by a single fair semaphore, the
+ * connections budget: the getters of all the active files queue on it in turn, so every active file gets
+ * its share of the connections, however large the other files are.
+ */
+public class ChunkScheduler {
+
+    private static final int END_GAME_RANGES_PER_GETTER = 2; // ranges left per getter once the ranges shrink
+    private static final long BASE_RETRY_DELAY = 250; // backoff (in ms) before the first retry of a range
+    private static final long MAX_RETRY_DELAY = 30000; // max backoff (in ms) before retrying a range
+
+    private ChunkManager chunkManager;
+    private MirrorScheduler mirrorScheduler;
+    private AtomicInteger cursor = new AtomicInteger(0); // no chunk before the cursor is pending
+    private AtomicInteger pendingCount;
+    private long fileSize;
+    private int chunkCount;
+    private int getterCount;
+    private Semaphore rangePermits; // a permit per range in flight
+    private Semaphore connectionBudget; // a permit per range in flight over all the files of a batch, or null
+    private volatile boolean cancelled = false;
+    private final LongAdder retryCount = new LongAdder();
+    private Set<InFlightRange> inFlightRanges = ConcurrentHashMap.newKeySet();
+    private DelayQueue<PendingRetry> retryQueue = new DelayQueue<>();
+
+    /**
+     * The remainder of a failed range, waiting for its backoff to pass.
+     */
+    private static class PendingRetry implements Delayed {
+        private InFlightRange range;
+        private long readyTime; // in ns
+
+        PendingRetry(InFlightRange range, long delayMillis) {
+            this.range = range;
+            this.readyTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(readyTime, ((PendingRetry) other).readyTime);
+        }
+    }
+
+    /**
+     * Creates a scheduler over the pending chunks of the given table.
+     * @param chunkManager - the chunk state table, whose chunks are marked in flight as they are handed out.
+     * @param mirrorScheduler - the scheduler choosing the mirror of each range.
+     * @param fileSize - the total file size in bytes.
+     * @param getterCount - the number of getters pulling ranges from this scheduler, which is also
+     *                      the max number of ranges in flight.
+     */
+    public ChunkScheduler(ChunkManager chunkManager, MirrorScheduler mirrorScheduler, long fileSize, int getterCount) {
+        this.chunkManager = chunkManager;
+        this.mirrorScheduler = mirrorScheduler;
+        this.pendingCount = new AtomicInteger(chunkManager.countChunks(ChunkManager.PENDING));
+        this.fileSize = fileSize;
+        this.chunkCount = chunkManager.getChunksCount();
+        this.getterCount = getterCount;
+        this.rangePermits = new Semaphore(getterCount);
+    }
+
+    /**
+     * Creates a scheduler over the pending chunks of a file of a batch, sharing the connections budget
+     * with the other files of the batch.
+     * @param chunkManager - the chunk state table, whose chunks are marked in flight as they are handed out.
+     * @param mirrorScheduler - the scheduler choosing the mirror of each range.
+     * @param fileSize - the total file size in bytes.
+     * @param getterCount - the number of getters pulling ranges from this scheduler, which is also
+     *                      the max number of ranges in flight.
+     * @param connectionBudget - a fair semaphore holding a permit per range in flight, over all the files.
+     */
+    public ChunkScheduler(ChunkManager chunkManager, MirrorScheduler mirrorScheduler, long fileSize, int getterCount,
+                          Semaphore connectionBudget) {
+        this(chunkManager, mirrorScheduler, fileSize, getterCount);
+        this.connectionBudget = connectionBudget;
+    }
+
+    /**
+     * Claims the next range to download, by priority, along with the mirror to download it from.
+     * Safe to call concurrently, each chunk is handed out once. When there is nothing to hand out but
+     * failed ranges waiting for their backoff, waits for the backoff to pass.
+     * Blocks while the max number of ranges are in flight, then (in batch mode) until the connections budget
+     * has a permit for the range. The budget is taken once the range is found, so a file waiting for the
+     * backoff of its failed ranges does not hold a connection the other files could use.
+     * The getter must call {@complete} or {@retry} once it stops reading the returned range.
+     * @param preferredChunkCount - gives the number of chunks the getter would like to download at once
+     *                              from the given mirror.
+     * @returns the claimed range, or null if no chunk is left to download or to retry.
+     * @throws IOException if all the mirrors are down for longer than the deadline.
+     * @throws InterruptedException if interrupted while waiting for a failed range or a mirror.
+     */
+    public InFlightRange nextRange(ToIntFunction<MirrorStats> preferredChunkCount)
+            throws IOException, InterruptedException {
+        rangePermits.acquire();
+        InFlightRange inFlightRange = null;
+        try {
+            inFlightRange = findNextRange(preferredChunkCount);
+        }
+        finally {
+            if (inFlightRange == null) {
+                rangePermits.release();
+            }
+        }
+        if (inFlightRange != null && connectionBudget != null) {
+            connectionBudget.acquireUninterruptibly(); // the range is already claimed
+        }
+        return inFlightRange;
+    }
+
+    /**
+     * Stops handing out ranges, once the download failed. The ranges in flight may still complete.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Releases the permits of a range the getter stopped reading.
+     */
+    private void releasePermits() {
+        rangePermits.release();
+        if (connectionBudget != null) {
+            connectionBudget.release();
+        }
+    }
+
+    /**
+     * Finds the next range to hand out, by priority, waiting for the failed ranges' backoff if needed.
+     * @returns the claimed range, or null if no chunk is left to download or to retry, or if cancelled.
+     */
+    private InFlightRange findNextRange(ToIntFunction<MirrorStats> preferredChunkCount)
+            throws IOException, InterruptedException {
+        while (!cancelled) {
+            PendingRetry retry = retryQueue.poll();
+            if (retry != null) {
+                return assign(retry.range, acquireMirror(retry.range.getFailedMirror()));
+            }
+            if (pendingCount.get() > 0 || hasSplittableRange()) {
+                MirrorStats mirror = acquireMirror(null);
+                ChunkRange range = claimPendingRange(preferredChunkCount.applyAsInt(mirror));
+                if (range == null) {
+                    range = splitSlowestRange();
+                }
+                if (range != null) {
+                    return assign(new InFlightRange(range), mirror);
+                }
+                mirrorScheduler.release(mirror);
+            }
+            if (retryQueue.isEmpty()) {
+                return null;
+            }
+            retry = retryQueue.poll(MAX_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            if (retry != null) {
+                return assign(retry.range, acquireMirror(retry.range.getFailedMirror()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param avoidedMirror - a mirror to choose only if no other one is available, or null.
+     * @returns a mirror to send the next request to.
+     * @throws IOException if all the mirrors are down for longer than the deadline.
+     */
+    private MirrorStats acquireMirror(MirrorStats avoidedMirror) throws IOException, InterruptedException {
+        MirrorStats mirror = mirrorScheduler.acquireMirror(avoidedMirror);
+        if (mirror == null) {
+            throw new IOException("All the servers are unreachable.");
+        }
+        return mirror;
+    }
+
+    /**
+     * Adds the given range to the ranges in flight, to be downloaded from the given mirror.
+     * @returns the given range.
+     */
+    private InFlightRange assign(InFlightRange inFlightRange, MirrorStats mirror) {
+        inFlightRange.setMirror(mirror);
+        inFlightRanges.add(inFlightRange);
+        return inFlightRange;
+    }
+
+    /**
+     * Unregisters a range the getter stopped reading (completely read, or truncated by a split),
+     * and releases its mirror.
+     * @param inFlightRange - a range returned by {@nextRange}.
+     */
+    public void complete(InFlightRange inFlightRange) {
+        inFlightRanges.remove(inFlightRange);
+        mirrorScheduler.release(inFlightRange.getMirror());
+        releasePermits();
+    }
+
+    /**
+     * Unregisters a range whose request failed, releases its mirror, and schedules the retry of its chunks
+     * which were not completely read, after a jittered exponential backoff. The backoff grows with each
+     * failure of the same chunks, and starts over if the failed request made some progress.
+     * The chunks stay in flight until they are downloaded by the retry.
+     * @param inFlightRange - a range returned by {@nextRange}.
+     */
+    public void retry(InFlightRange inFlightRange) {
+        ChunkRange remainder = inFlightRange.abandon();
+        inFlightRanges.remove(inFlightRange);
+        mirrorScheduler.release(inFlightRange.getMirror());
+        releasePermits();
+        retryCount.increment();
+        if (remainder == null) {
+            return;
+        }
+        int attempt = (inFlightRange.getBytesRead() > 0) ? 1 : inFlightRange.getAttempt() + 1;
+        long backoff = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(attempt - 1, 16));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        InFlightRange retried = new InFlightRange(remainder, attempt, inFlightRange.getMirror());
+        retryQueue.put(new PendingRetry(retried, delay));
+    }
+
+    /**
+     * Claims the next consecutive pending chunks from the cursor, marking them in flight.
+     * Only the getter moving the cursor past pending chunks may mark them, so the transitions never fail.
+     * @returns the claimed range, or null if every chunk was already handed out.
+     */
+    private ChunkRange claimPendingRange(int preferredChunkCount) {
+        while (true) {
+            int position = cursor.get();
+            int first = chunkManager.nextPendingChunk(position);
+            if (first < 0) {
+                return null;
+            }
+            int endGameLimit = Math.max(1, pendingCount.get() / (getterCount * END_GAME_RANGES_PER_GETTER));
+            int span = pendingChunksFrom(first, Math.min(preferredChunkCount, endGameLimit));
+            if (cursor.compareAndSet(position, first + span)) {
+                for (int i = first; i < first + span; i++) {
+                    chunkManager.markInFlight(i);
+                }
+                pendingCount.addAndGet(-span);
+                return new ChunkRange(first, span, fileSize, chunkCount);
+            }
+        }
+    }
+
+    /**
+     * Splits the in-flight range expected to finish last, taking away the unread half of its chunks.
+     * @returns the range taken away, or null if no range has at least two unread chunks.
+     */
+    private ChunkRange splitSlowestRange() {
+        InFlightRange slowest = null;
+        long slowestRemainingTime = -1;
+        for (InFlightRange inFlightRange : inFlightRanges) {
+            long remainingTime = inFlightRange.estimatedRemainingTime();
+            if (inFlightRange.isSplittable() && remainingTime > slowestRemainingTime) {
+                slowest = inFlightRange;
+                slowestRemainingTime = remainingTime;
+            }
+        }
+        return (slowest != null) ? slowest.split() : null;
+    }
+
+    /**
+     * @returns true if and only if a range in flight has at least two unread chunks.
+     */
+    private boolean hasSplittableRange() {
+        for (InFlightRange inFlightRange : inFlightRanges) {
+            if (inFlightRange.isSplittable()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @returns the number of consecutive pending chunks starting at the given pending chunk, up to <maxCount>.
+     */
+    private int pendingChunksFrom(int first, int maxCount) {
+        int span = 1;
+        while (span < maxCount && first + span < chunkCount &&
+                chunkManager.getChunkState(first + span) == ChunkManager.PENDING) {
+            span++;
+        }
+        return span;
+    }
+
+    /* GETTERS & SETTERS */
+
+    /**
+     * @returns the number of failed ranges handed back for a retry.
+     */
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * @returns the number of ranges in flight.
+     */
+    public int getInFlightCount() {
+        return inFlightRanges.size();
+    }
+}
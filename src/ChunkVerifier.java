@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32C;
+
+/**
+ * Checks the data of the completed chunks in the destination file against the checksums manifest of
+ * the metadata, to find the chunks lost to a crash or a torn write.
+ * The chunks table is split recursively into fork-join tasks, each one memory-mapping its own region
+ * of the destination file (read only) and checking its completed chunks, so the check runs on all
+ * the cores and reads the file without copying it to the heap.
+ */
+public class ChunkVerifier {
+
+    private static final int LEAF_CHUNKS = 256; // chunks checked by a single task, over a single mapping
+
+    private MinifiedChunkTable chunkTable;
+    private long fileSize;
+
+    /**
+     * @param chunkTable - the table of the completed chunks, and of their checksums.
+     * @param fileSize - the total file size in bytes.
+     */
+    public ChunkVerifier(MinifiedChunkTable chunkTable, long fileSize) {
+        this.chunkTable = chunkTable;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Checks every completed chunk of the given destination file. A missing file fails all of them.
+     * @param destinationPath - the destination file path.
+     * @returns the IDs of the completed chunks whose data does not match their checksum.
+     * @throws IOException if the destination file could not be read.
+     */
+    public List<Integer> verify(Path destinationPath) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        FileChannel channel = null;
+        long dataSize = 0; // the size of the destination file on disk
+        Queue<Integer> failedChunks = new ConcurrentLinkedQueue<>();
+        try {
+            if (Files.exists(destinationPath)) {
+                channel = FileChannel.open(destinationPath, StandardOpenOption.READ);
+                dataSize = channel.size();
+            }
+            pool.invoke(new VerifyTask(chunkTable, fileSize, channel, dataSize, failedChunks,
+                    0, chunkTable.getChunkCount()));
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            pool.shutdown();
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        return new ArrayList<>(failedChunks);
+    }
+
+    /**
+     * Checks the completed chunks of a range of the table, splitting it while it is large.
+     * The failed chunks are added to the queue shared by all the tasks of a check.
+     */
+    private static class VerifyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private MinifiedChunkTable chunkTable;
+        private long fileSize;
+        private FileChannel channel; // the destination file, or null if it is missing
+        private long dataSize; // the size of the destination file on disk
+        private Queue<Integer> failedChunks;
+        private int fromIndex; // inclusive
+        private int toIndex; // exclusive
+
+        VerifyTask(MinifiedChunkTable chunkTable, long fileSize, FileChannel channel, long dataSize,
+                   Queue<Integer> failedChunks, int fromIndex, int toIndex) {
+            this.chunkTable = chunkTable;
+            this.fileSize = fileSize;
+            this.channel = channel;
+            this.dataSize = dataSize;
+            this.failedChunks = failedChunks;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        /**
+         * @returns a task checking the given range of the table, over the same file.
+         */
+        private VerifyTask subtask(int fromIndex, int toIndex) {
+            return new VerifyTask(chunkTable, fileSize, channel, dataSize, failedChunks, fromIndex, toIndex);
+        }
+
+        @Override
+        protected void compute() {
+            if (toIndex - fromIndex > LEAF_CHUNKS) {
+                int middle = (fromIndex + toIndex) >>> 1;
+                invokeAll(subtask(fromIndex, middle), subtask(middle, toIndex));
+                return;
+            }
+            try {
+                verifyChunks();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Maps the region of the file holding this task's chunks, then checks each completed chunk.
+         * A chunk extending past the end of the file fails.
+         */
+        private void verifyChunks() throws IOException {
+            long regionStart = (long)fromIndex * Chunk.CHUNK_SIZE;
+            long regionEnd = Math.min(Math.min(fileSize, (long)toIndex * Chunk.CHUNK_SIZE), dataSize);
+            MappedByteBuffer region = (regionEnd > regionStart) ?
+                    channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart) : null;
+            CRC32C checksum = new CRC32C();
+            for (int i = fromIndex; i < toIndex; i++) {
+                if (!chunkTable.getElementAt(i)) continue;
+                long chunkStart = (long)i * Chunk.CHUNK_SIZE;
+                long chunkEnd = Math.min(fileSize, chunkStart + Chunk.CHUNK_SIZE);
+                if (chunkEnd > regionEnd) {
+                    failedChunks.add(i);
+                    continue;
+                }
+                ByteBuffer data = region.duplicate();
+                data.limit((int)(chunkEnd - regionStart));
+                data.position((int)(chunkStart - regionStart));
+                checksum.reset();
+                checksum.update(data);
+                if ((int)checksum.getValue() != chunkTable.getChecksum(i)) {
+                    failedChunks.add(i);
+                }
+            }
+        }
+    }
+}
@@ -1,105 +1,195 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ChunkWriter implements Runnable {
 
+    public static final int DEFAULT_WRITER_THREADS = 1; // default number of concurrent writer threads
+    private static final long POLL_TIMEOUT = 200; // max wait time (in ms) for a chunk before re-checking the download status
+
     private PriorityBlockingQueue<Chunk> chunkQueue;
     private ChunkManager chunkManager;
     private String destinationPath;
     private MetadataManager metadataManager;
     private RandomAccessFile writer;
     private DownloadStatus downloadStatus;
+    private DownloadManager downloadManager;
+    private FileHasher fileHasher;
 
     /**
      * Initializing the program writer thread.
      * @param destinationFilePath - the path of the output file.
      * @param chunkQueue - the chunk queue to dequeue chunks from.
      * @param metadataManager - the metadata manager object to serialize with.
-     * @param chunkManager - the chunk manager to serialize after writing.
+     * @param chunkManager - the chunk state table, updated after writing.
      * @param downloadStatus - the download status object to update after writing.
+     * @param downloadManager - a reference to the download manager object, interrupting the download if a
+     *                        write fails, or null to only mark the download as failed.
+     * @param fileHasher - the hasher of the whole file to hand the written chunks over to, or null.
      */
     public ChunkWriter(String destinationFilePath, PriorityBlockingQueue<Chunk> chunkQueue,
-                       MetadataManager metadataManager, ChunkManager chunkManager, DownloadStatus downloadStatus) {
+                       MetadataManager metadataManager, ChunkManager chunkManager, DownloadStatus downloadStatus,
+                       DownloadManager downloadManager, FileHasher fileHasher) {
         this.chunkQueue = chunkQueue;
+        this.fileHasher = fileHasher;
         this.chunkManager = chunkManager;
         this.destinationPath = destinationFilePath;
         this.metadataManager = metadataManager;
         this.downloadStatus = downloadStatus;
+        this.downloadManager = downloadManager;
         initWriter(destinationFilePath);
     }
 
     /**
      * Creating a RandomAccessFile object to handle the file writing.
-     * If the output file already exists, open it and continue writing to it.
-     * Otherwise, a new file will be created.
+     * The output file is created and allocated to its full size by the download manager beforehand,
+     * so the chunks are written in place, in any order, without growing the file.
      * @param destFilePath - the downloaded file destination path.
      */
     private void initWriter(String destFilePath) {
-        File destFile = new File(destFilePath);
         try {
-            if (destFile.exists()) {
-                writer = new RandomAccessFile(destFile, "rw");
-            }
-            else {
-                writer = new RandomAccessFile(destFilePath, "rw");
-                writer.setLength(0); // ensuring the file is empty before start writing.
-            }
+            writer = new RandomAccessFile(destFilePath, "rw");
         }
         catch (FileNotFoundException e) {
             ProgramPrinter.printError("Unable to create destination file: invalid path.", e);
         }
-        catch (IOException e) {
-            ProgramPrinter.printError("Unable to write to destination file.", e);
-        }
     }
 
     /**
      * Starting the ChunkWriter thread.
-     * The writer iteratively fetches a chunk from the {@chunkQueue}, and write it
-     * to the destination file.
+     * The writer blocks until a chunk is available in the {@chunkQueue}, then drains all the
+     * chunks ready at that moment (in start position order) and writes them to the destination file.
+     * The written chunks are periodically group-committed to the metadata journal.
+     * Several writers may share the same queue, each one with its own file handle.
      */
     @Override
     public void run() {
-        Chunk c;
-        while (!downloadStatus.isCompleted()) {
-            c = chunkQueue.poll();
-            if (c != null) {
-                writeChunkToFile(c);
+        List<Chunk> readyChunks = new ArrayList<>();
+        try {
+            while (!downloadStatus.isCompleted() && !downloadStatus.isFailed()) {
+                Chunk c = chunkQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (c != null) {
+                    readyChunks.add(c);
+                    chunkQueue.drainTo(readyChunks);
+                    writeReadyChunks(readyChunks);
+                    readyChunks.clear();
+                }
+                metadataManager.commitIfDue();
             }
         }
-        handleWritingCompletion();
+        catch (InterruptedException e) {
+            ProgramPrinter.printError("The writer was interrupted.", e);
+        }
     }
 
     /**
-     * Synchronously writing the given chunk's data to the file, in it's correct position.
-     * @param c - Chunk to be written to file.
+     * Records a chunk whose data its getter wrote in place, on the getter's thread (mapped mode, which runs
+     * no writer thread): the chunk is flagged and hashed as a written notice, and the getter completing a
+     * chunk once a group commit is due runs the commit.
+     * @param c - the completion notice of the chunk.
      */
-    private void writeChunkToFile(Chunk c) {
-        synchronized (this) {
-            try {
-                writer.seek(c.getStartPosition());
-                writer.write(c.getData());
+    public void completeInPlace(Chunk c) {
+        writeChunksToFile(Collections.singletonList(c));
+        metadataManager.commitIfDue();
+    }
+
+    /**
+     * Splits the given chunks into runs of adjacent chunks, and writes each run to the file.
+     * @param readyChunks - chunks sorted by their start position.
+     */
+    private void writeReadyChunks(List<Chunk> readyChunks) {
+        int runStart = 0;
+        for (int i = 1; i <= readyChunks.size(); i++) {
+            if (i == readyChunks.size() || !isAdjacent(readyChunks.get(i - 1), readyChunks.get(i))) {
+                writeChunksToFile(readyChunks.subList(runStart, i));
+                runStart = i;
             }
-            catch (IOException e) {
-                ProgramPrinter.printError("Failed to write data portion to file.", e);
+        }
+    }
+
+    /**
+     * @returns true if and only if chunk <next> starts right where chunk <previous> ends.
+     */
+    private boolean isAdjacent(Chunk previous, Chunk next) {
+        return previous.getStartPosition() + previous.getSize() == next.getStartPosition();
+    }
+
+    /**
+     * Writes the data of the given run of adjacent chunks to the file using a single gathering write,
+     * starting at the first chunk's position. Chunks without data are completion notices for data
+     * already streamed to the file by their getters.
+     * The written chunks are handed over to the file hasher, if any, before their buffers are released.
+     * If the write fails, the chunks of the run are not flagged as completed, so the journal never records
+     * them, and the download is interrupted.
+     * @param run - a non-empty list of adjacent Chunks to be written to file.
+     */
+    private void writeChunksToFile(List<Chunk> run) {
+        try {
+            ByteBuffer[] buffers = collectBuffers(run);
+            if (buffers.length > 0) {
+                FileChannel channel = writer.getChannel();
+                channel.position(run.get(0).getStartPosition());
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Failed to write data portion to file.", e);
+            for (Chunk c : run) {
+                c.clearData();
             }
-            catch (NullPointerException e) {
-                // suppressing errors in case of corrupted Chunk (occurs in case of connectivity I/O error)
+            if (downloadManager != null) {
+                downloadManager.interruptOnWriteFailure();
             }
+            else {
+                downloadStatus.markFailed();
+            }
+            return;
+        }
+        for (Chunk c : run) {
             flagChunkAsCompleted(c);
         }
+        if (fileHasher != null) {
+            try {
+                fileHasher.hashWrittenChunks(run);
+            }
+            catch (IOException e) {
+                ProgramPrinter.printError("Failed to read back a written chunk for hashing.", e);
+            }
+        }
+        for (Chunk c : run) {
+            c.clearData();
+        }
+    }
+
+    /**
+     * @param run - a list of Chunks.
+     * @returns the data buffers of the Chunks that hold data, in the same order.
+     */
+    private ByteBuffer[] collectBuffers(List<Chunk> run) {
+        List<ByteBuffer> buffers = new ArrayList<>(run.size());
+        for (Chunk c : run) {
+            if (c.hasData()) buffers.add(c.getData());
+        }
+        return buffers.toArray(new ByteBuffer[0]);
     }
 
     /**
-     * Mark the given Chunk as successfully written to disk, and add it to the metadata file.
+     * Mark the given Chunk as successfully written to disk in the chunks table, and register it for the
+     * next metadata journal commit (which flags it as completed once its data is durable).
      * @param c - the completed Chunk.
      */
     private void flagChunkAsCompleted(Chunk c) {
         try {
-            c.setStatus(true);
+            chunkManager.markWritten(c.getID());
             downloadStatus.addCompletedBytes(c.getSize());
-            metadataManager.save(chunkManager);
-            c.clearData();
+            metadataManager.markCompleted(c);
         }
         catch (NullPointerException e) {
             // suppressing errors in case of corrupted Chunk (occurs in case of connectivity I/O error)
@@ -107,18 +197,17 @@ public class ChunkWriter implements Runnable {
     }
 
     /**
-     * Finalizes the download process after all the Chunk written to disk.
+     * @returns the channel of the destination file, for getters writing their data directly to it.
      */
-    private void handleWritingCompletion() {
-        closeWriter();
-        metadataManager.clearFiles();
-        downloadStatus.handleDownloadSuccess();
+    public FileChannel getDestinationChannel() {
+        return writer.getChannel();
     }
 
     /**
      * Frees all the resources used by this object.
+     * Called once the written data was committed, after the writer thread finished.
      */
-    private void closeWriter() {
+    public void closeWriter() {
         try {
             writer.close();
         }
@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the HTTP connections established and the range requests sent over them by all the getters,
+ * to report how well the persistent connections were reused, along with the connections closed,
+ * to report the connections open.
+ * The HTTP/2 transport opens its connections inside its clients, which are counted instead: their
+ * requests are multiplexed, so no reuse ratio applies.
+ */
+public class ConnectionStats {
+
+    private final AtomicLong connectCount = new AtomicLong(0);
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong disconnectCount = new AtomicLong(0);
+    private final AtomicLong clientCount = new AtomicLong(0); // HTTP/2 clients created
+    private final AtomicLong closedClientCount = new AtomicLong(0);
+
+    public void addConnect() {
+        connectCount.incrementAndGet();
+    }
+
+    public void addDisconnect() {
+        disconnectCount.incrementAndGet();
+    }
+
+    public void addClient() {
+        clientCount.incrementAndGet();
+    }
+
+    public void addClosedClient() {
+        closedClientCount.incrementAndGet();
+    }
+
+    public void addRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * @returns the fraction of the requests sent over an already established connection.
+     */
+    public double getReuseRatio() {
+        long requests = requestCount.get();
+        return (requests == 0) ? 0 : (double)(requests - Math.min(requests, connectCount.get())) / requests;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    public long getClientCount() {
+        return clientCount.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getOpenCount() {
+        return connectCount.get() - disconnectCount.get() + clientCount.get() - closedClientCount.get();
+    }
+}
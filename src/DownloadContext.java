@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The resources shared by the downloads of a single program run: the executor running the getters,
+ * the transports (and so the connections to the servers), the buffer pool, the global rate limit and
+ * the connections budget.
+ * A single download owns its own context. In batch mode all the files share a single context, so the
+ * threads and the connections are reused from a file to the next, the memory budget holds for all the
+ * files together, and the ranges in flight of all the files are bounded by a single connections budget.
+ */
+public class DownloadContext {
+
+    private int maxConnections;
+    private ThreadMode threadMode;
+    private TransportMode transportMode;
+    private int connectionsPerServer;
+    private WriteMode writeMode;
+    private int maxBufferMB;
+    private boolean shared;
+
+    private ExecutorService threadPool;
+    private Semaphore connectionBudget; // a permit per range in flight, over all the files
+    private BufferPool bufferPool;
+    private TokenBucket rateLimit; // caps the rate of all the downloads together
+    private ConnectionStats connectionStats = new ConnectionStats();
+    private Transport sharedTransport; // the transport of all the getters, if thread safe
+    private Deque<Transport> idleTransports = new ConcurrentLinkedDeque<>(); // transports no getter is using
+    private List<Transport> transports = Collections.synchronizedList(new ArrayList<>());
+    private MetricsExporter metricsExporter; // dumps the metrics of the downloads to a file, or null
+
+    /**
+     * Creates the resources of the downloads, as chosen by the user.
+     * @param userInput - the program options.
+     * @param shared - true if the context is shared by the files of a batch, false for a single download.
+     */
+    public DownloadContext(ProgramInput userInput, boolean shared) {
+        this.maxConnections = userInput.getMaxConnections();
+        this.threadMode = userInput.getThreadMode();
+        this.transportMode = userInput.getTransportMode();
+        this.connectionsPerServer = userInput.getConnectionsPerServer();
+        this.writeMode = userInput.getWriteMode();
+        this.maxBufferMB = userInput.getMaxBufferMB();
+        this.shared = shared;
+        this.rateLimit = new TokenBucket(userInput.getMaxRate());
+        this.connectionBudget = new Semaphore(maxConnections, true);
+        if (userInput.getMetricsFile() != null) {
+            this.metricsExporter = new MetricsExporter(userInput.getMetricsFile());
+        }
+    }
+
+    /**
+     * @returns the executor running the getters, created on first use: a ThreadPool object with the given
+     * number of connections (threads being created as needed when shared by the files of a batch), or a
+     * virtual thread per getter in virtual thread mode. Either way the number of concurrent ranges is
+     * bounded by the schedulers, not by the executor.
+     * Virtual threads require Java 21; on older runtimes the platform thread pool is used instead.
+     */
+    public synchronized ExecutorService getThreadPool() {
+        if (threadPool != null) {
+            return threadPool;
+        }
+        if (threadMode == ThreadMode.VIRTUAL) {
+            try {
+                threadPool = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return threadPool;
+            }
+            catch (ReflectiveOperationException e) {
+                ProgramPrinter.printMessage("Virtual threads require Java 21 or later, using platform threads.\n");
+            }
+        }
+        threadPool = shared ? Executors.newCachedThreadPool() : Executors.newFixedThreadPool(maxConnections);
+        return threadPool;
+    }
+
+    /**
+     * @returns the pool of buffers holding downloaded chunks until they are written to disk, created on
+     * first use. The pool bounds the memory used by the chunk queues to the user's memory budget.
+     * Streaming getters write directly to the destination file, so they need no pool (null).
+     */
+    public synchronized BufferPool getBufferPool() {
+        if (bufferPool == null && writeMode == WriteMode.BUFFERED) {
+            bufferPool = new BufferPool(maxBufferMB, Chunk.CHUNK_SIZE);
+        }
+        return bufferPool;
+    }
+
+    /**
+     * @returns a transport for a getter: the shared HTTP/2 transport (created on first use), or an idle
+     * HTTP/1.1 transport, whose connections are kept from its previous getter, or else a new one.
+     * The transport must be handed back with {@releaseTransport} once the getter is done.
+     */
+    public Transport acquireTransport() {
+        if (transportMode == TransportMode.HTTP2) {
+            synchronized (this) {
+                if (sharedTransport == null) {
+                    sharedTransport = new Http2Transport(connectionsPerServer, connectionStats);
+                    transports.add(sharedTransport);
+                }
+                return sharedTransport;
+            }
+        }
+        Transport transport = idleTransports.pollFirst();
+        if (transport == null) {
+            transport = new Http1Transport(connectionStats);
+            transports.add(transport);
+        }
+        return transport;
+    }
+
+    /**
+     * Hands back a transport whose getter is done, to be reused by the next getter.
+     * @param transport - a transport returned by {@acquireTransport}.
+     */
+    public void releaseTransport(Transport transport) {
+        if (transport != sharedTransport) {
+            idleTransports.offerFirst(transport);
+        }
+    }
+
+    /**
+     * Stops the getters' executor and the metrics dumps, and closes the connections of all the transports.
+     * Called once all the downloads sharing this context are done.
+     */
+    public void close() {
+        if (metricsExporter != null) {
+            metricsExporter.close();
+        }
+        if (threadPool != null) {
+            threadPool.shutdown();
+        }
+        synchronized (transports) {
+            for (Transport transport : transports) {
+                transport.close();
+            }
+        }
+    }
+
+    /* GETTERS & SETTERS */
+
+    public Semaphore getConnectionBudget() {
+        return connectionBudget;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public ConnectionStats getConnectionStats() {
+        return connectionStats;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public MetricsExporter getMetricsExporter() {
+        return metricsExporter;
+    }
+}
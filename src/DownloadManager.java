@@ -1,29 +1,68 @@
+import java.io.File;
 import java.io.IOException;
-import java.net.*;
+import java.net.MalformedURLException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class DownloadManager {
 
-    private static final String HEAD_REQUEST_METHOD = "HEAD";
+    private static final String PART_SUFFIX = ".part"; // suffix of the file being written, until it is complete
 
     private String fileName;
     private int numConnections;
     private long fileSize;
+    private String fileValidator;
+    private WriteMode writeMode;
+    private int maxBufferMB;
+    private int writerThreads;
+    private TransportMode transportMode;
+    private long maxRatePerServer;
+    private HashAlgorithm hashAlgorithm;
+    private String expectedHash;
+    private boolean verify;
     private ArrayList<String> serverList;
 
-    private ThreadPoolExecutor threadPool;
+    private DownloadContext context; // the resources shared with the other downloads of the run, if any
     private MetadataManager metadataManager;
     private ChunkManager chunkManager;
     private ChunkWriter chunkWriter;
+    private MappedDestination mappedDestination; // in mapped mode only
+    private List<ChunkWriter> chunkWriterList;
+    private List<Thread> writerThreadList;
     private PriorityBlockingQueue<Chunk> chunkQueue;
+    private BufferPool bufferPool;
+    private FileHasher fileHasher;
+    private ChunkScheduler chunkScheduler;
+    private MirrorScheduler mirrorScheduler;
+    private List<Future<?>> getterFutures = new ArrayList<>();
+    private DownloadMetrics downloadMetrics;
     private DownloadStatus downloadStatus;
+    private ProgressReporter progressReporter;
 
     /**
-     * Creates the download manager object.
+     * Creates the download manager object, owning the resources of its download.
      */
     public DownloadManager(ProgramInput userInput) {
+        this(userInput, new DownloadContext(userInput, false));
+    }
+
+    /**
+     * Creates the download manager object of a file of a batch, sharing the given resources with the
+     * other files of the batch. A failed download of a batch does not abort the program run: its metadata
+     * is kept, and {@startDownload} returns false.
+     * @param userInput - the parameters of this file's download.
+     * @param context - the resources shared by the downloads of the run.
+     */
+    public DownloadManager(ProgramInput userInput, DownloadContext context) {
+        this.context = context;
         storeUserInput(userInput);
     }
 
@@ -35,90 +74,153 @@ public class DownloadManager {
         serverList = userInput.getServerList();
         numConnections = userInput.getMaxConnections();
         fileName = userInput.getFileName();
+        writeMode = userInput.getWriteMode();
+        maxBufferMB = userInput.getMaxBufferMB();
+        writerThreads = userInput.getWriterThreads();
+        transportMode = userInput.getTransportMode();
+        maxRatePerServer = userInput.getMaxRatePerServer();
+        hashAlgorithm = userInput.getHashAlgorithm();
+        expectedHash = userInput.getExpectedHash();
+        verify = userInput.isVerify();
+        if (hashAlgorithm == null && expectedHash != null) {
+            hashAlgorithm = HashAlgorithm.fromDigest(expectedHash);
+        }
         fileSize = getFileSize();
     }
 
     /**
-     * Establish a URL connection to one of the servers and fetch the total
-     * desired file size in bytes.
+     * Probe one of the servers with the chosen transport and fetch the total
+     * desired file size in bytes, along with the file validator (ETag or Last-Modified)
+     * used to detect a source file changed between runs.
+     * The servers are tried in order, until one of them responds.
      * @return File size in bytes.
      */
     private long getFileSize() {
-        long fileSize = 0;
-        String serverAddress = serverList.get(0);
+        Transport transport = context.acquireTransport();
         try {
-            HttpURLConnection connection = (HttpURLConnection) (new URL(serverAddress)).openConnection();
-            connection.setRequestMethod(HEAD_REQUEST_METHOD);
-            fileSize = connection.getContentLength();
+            for (String serverAddress : serverList) {
+                try {
+                    RemoteFileInfo fileInfo = transport.probe(serverAddress);
+                    fileValidator = fileInfo.getValidator();
+                    return fileInfo.getSize();
+                }
+                catch (MalformedURLException e) {
+                    ProgramPrinter.printMessage(String.format("Invalid URL address given as input: %s", serverAddress));
+                }
+                catch (IOException e) {
+                    ProgramPrinter.printMessage(String.format("Unable to get the total size of the source file from %s:\n%s",
+                            serverAddress, e.getLocalizedMessage()));
+                }
+            }
+            return -1;
         }
-        catch (MalformedURLException e) {
-            ProgramPrinter.printError("Invalid URL address given as input.", e);
+        finally {
+            context.releaseTransport(transport);
         }
-        catch (IOException e) {
-            ProgramPrinter.printError("Unable to get the total size of the source file.", e);
-        }
-        return fileSize;
     }
 
     /**
      * Download manager entry point to start the download process, if possible.
      * Negative file size indicates connection establishment error.
+     * A single download releases its resources once done; the resources of a batch are released by the batch.
+     * @returns true if and only if the file was downloaded (and verified, if a digest was expected).
      */
-    public void startDownload() {
-        if (fileSize < 0) {
-            ProgramPrinter.printError("No internet connection.");
+    public boolean startDownload() {
+        try {
+            if (fileSize < 0) {
+                ProgramPrinter.printError("No internet connection.");
+                return false;
+            }
+            if (!context.isShared()) {
+                ProgramPrinter.printInitMessage(fileName, serverList.size(), numConnections);
+            }
+            return initDownload();
         }
-        else {
-            ProgramPrinter.printInitMessage(fileName, serverList.size(), numConnections);
-            initThreads(numConnections);
-            initDownload();
+        finally {
+            if (!context.isShared()) {
+                context.close();
+            }
         }
     }
 
-    /**
-     * Initialize a ThreadPool object with the given number of connections.
-     * @param n - the required number of connections.
-     */
-    private void initThreads(int n) {
-        this.threadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(n);
-    }
-
     /**
      * Activates the objects responsible for different parts of the download process,
      * then wait for the termination of all active connections.
      */
-    private void initDownload() {
+    private boolean initDownload() {
         initMetadataManager();
+        if (!initPartFile()) {
+            return false;
+        }
         initChunkManager(this.fileSize);
         initDownloadStatus();
         initChunkQueue();
-        initChunkWriter();
+        initBufferPool();
+        initFileHasher();
+        if (!initChunkWriter()) {
+            return false;
+        }
         initChunkGetters();
-        waitForCompletionAndCloseConnections();
+        initProgressReporter();
+        initMetrics();
+        waitForGetters();
+        boolean succeeded = waitForWritersAndFinish();
+        closeMetrics();
+        return succeeded;
     }
 
     /**
      * Initialize the object managing the download metadata writing and loading.
      */
     private void initMetadataManager() {
-        metadataManager = new MetadataManager(fileName, fileSize);
+        metadataManager = new MetadataManager(fileName, fileSize, fileValidator);
+    }
+
+    /**
+     * Prepares the part file the data is written to until the download is complete, so a half-written file
+     * never sits under the destination name. The whole file is allocated up front (see {@FilePreallocator}).
+     * A download started by a version writing to the destination name directly is resumed from it.
+     * @returns false if the part file could not be created.
+     */
+    private boolean initPartFile() {
+        File partFile = new File(getPartFilePath());
+        File destinationFile = new File(getDestinationFilePath());
+        if (!metadataManager.isFirstRun() && !partFile.exists() && destinationFile.exists()) {
+            destinationFile.renameTo(partFile);
+        }
+        if (partFile.length() == fileSize) {
+            return true;
+        }
+        try {
+            if (!FilePreallocator.preallocate(partFile, fileSize)) {
+                ProgramPrinter.printMessage(String.format("Unable to preallocate %s, the file grows as it is written.",
+                        partFile.getName()));
+            }
+            return true;
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to create destination file.", e);
+            return false;
+        }
     }
 
     /**
      * Initialize the object managing the download progress and completion status.
      */
     private void initDownloadStatus() {
-        long completedBytes = chunkManager.getCompletedChunksIDs().length * Chunk.CHUNK_SIZE;
+        long completedBytes = chunkManager.getCompletedBytes(fileSize);
+        boolean showProgress = !context.isShared(); // the files of a batch are reported once done
         if (completedBytes == 0) { // i.e. running the download manager for the first time
-            downloadStatus = new DownloadStatus(fileSize);
+            downloadStatus = new DownloadStatus(fileSize, showProgress);
         }
         else {
-            downloadStatus = new DownloadStatus(fileSize, completedBytes);
+            downloadStatus = new DownloadStatus(fileSize, completedBytes, showProgress);
         }
     }
 
     /**
-     * Creates an array of Chunks objects, initially empty.
+     * Creates an array of Chunks objects, initially empty, or restores the chunks completed by a previous
+     * run. In verify mode, the restored chunks are checked against their checksums first.
      * @param fileSize - the desired file size, in bytes.
      */
     private void initChunkManager(long fileSize) {
@@ -126,85 +228,444 @@ public class DownloadManager {
             chunkManager = new ChunkManager(fileSize);
         }
         else {
+            if (verify) {
+                ProgramPrinter.printMessage("Verifying the downloaded data...");
+                int failedChunks = metadataManager.verify(FileSystems.getDefault().getPath(getPartFilePath()));
+                if (failedChunks > 0) {
+                    ProgramPrinter.printMessage(String.format("%d corrupted chunk(s) will be downloaded again.",
+                            failedChunks));
+                }
+            }
             chunkManager = metadataManager.load();
         }
     }
 
     /**
      * Creates a blocking priority queue for handling the completed chunks
-     * waiting to be written to file.
+     * waiting to be written to file. The queue grows as needed: the chunks waiting at once are bounded
+     * by the buffer pool, not by the file size.
      */
     private void initChunkQueue() {
-        chunkQueue = new PriorityBlockingQueue<>(chunkManager.getChunksCount());
+        chunkQueue = new PriorityBlockingQueue<>();
+    }
+
+    /**
+     * Takes the pool of buffers holding downloaded chunks until they are written to disk from the context,
+     * so the memory budget holds for all the files of a batch together.
+     * Streaming getters write directly to the destination file, so they need no pool.
+     */
+    private void initBufferPool() {
+        bufferPool = context.getBufferPool();
+    }
+
+    /**
+     * @returns the absolute destination file path, relative to the current directory unless the
+     * destination given by the user is absolute.
+     */
+    private String getDestinationFilePath() {
+        return Paths.get(fileName).toAbsolutePath().toString();
+    }
+
+    /**
+     * @returns the absolute path of the file written until the download is complete.
+     */
+    private String getPartFilePath() {
+        return getDestinationFilePath() + PART_SUFFIX;
     }
 
     /**
-     * Initialize a ChunkWriter object to register to the queue and starts it.
+     * Creates the object hashing the whole file as it is written, if the user asked for a hash
+     * or gave the expected one.
      */
-    private void initChunkWriter() {
-        String currentDirPath = FileSystems.getDefault().getPath(".").toAbsolutePath().toString();
-        String destinationFilePath = String.format("%s/%s", currentDirPath, fileName);
+    private void initFileHasher() {
+        if (hashAlgorithm != null) {
+            fileHasher = new FileHasher(hashAlgorithm, chunkManager, fileSize);
+        }
+    }
 
-        chunkWriter = new ChunkWriter(destinationFilePath, chunkQueue, metadataManager, chunkManager, downloadStatus);
-        (new Thread(chunkWriter)).start();
+    /**
+     * Initialize the ChunkWriter objects to register to the queue and starts them.
+     * Each writer opens its own handle to the destination file, so several writers can write
+     * concurrently (useful for fast storage). Streaming getters share the first writer's channel.
+     * In mapped mode the getters write to the mapped file instead, and no writer thread runs.
+     * @returns false if the destination file could not be opened.
+     */
+    private boolean initChunkWriter() {
+        String destinationFilePath = getPartFilePath();
+
+        chunkWriterList = new ArrayList<>(writerThreads);
+        writerThreadList = new ArrayList<>(writerThreads);
+        if (writeMode == WriteMode.MAPPED) {
+            return initMappedDestination(destinationFilePath);
+        }
+        for (int i = 0; i < writerThreads; i++) {
+            ChunkWriter writer = new ChunkWriter(destinationFilePath, chunkQueue, metadataManager, chunkManager,
+                    downloadStatus, this, fileHasher);
+            if (chunkWriter == null) {
+                chunkWriter = writer;
+                metadataManager.setDataChannel(writer.getDestinationChannel());
+                if (fileHasher != null) {
+                    fileHasher.setDataChannel(writer.getDestinationChannel());
+                }
+            }
+            chunkWriterList.add(writer);
+            Thread writerThread = new Thread(writer);
+            writerThreadList.add(writerThread);
+            writerThread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Maps the destination file for the getters to copy the ranges into, in mapped mode. A single writer
+     * records the completed chunks, on the getters' threads, and its thread is not started. The metadata
+     * commits force the mapped windows written since the previous commit.
+     * @param destinationFilePath - the path of the (part) file written.
+     * @returns false if the file could not be opened.
+     */
+    private boolean initMappedDestination(String destinationFilePath) {
+        try {
+            mappedDestination = new MappedDestination(destinationFilePath, fileSize, chunkManager);
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to map the destination file.", e);
+            return false;
+        }
+        chunkWriter = new ChunkWriter(destinationFilePath, chunkQueue, metadataManager, chunkManager,
+                downloadStatus, this, fileHasher);
+        chunkWriterList.add(chunkWriter);
+        metadataManager.setMappedDestination(mappedDestination);
+        if (fileHasher != null) {
+            fileHasher.setDataChannel(mappedDestination.getChannel());
+        }
+        return true;
     }
 
     /**
-     * Creates and runs a ChunkGetter object for each Chunk not yet downloaded.
+     * Creates the scheduler handing out ranges of the Chunks not yet downloaded, and runs exactly one
+     * long-lived ChunkGetter object per connection, pulling ranges from it until none is left.
+     * With the asynchronous HTTP/2 transport a single getter dispatches all the ranges, and the number of
+     * connections given by the user is the number of ranges in flight, multiplexed over
+     * {@connectionsPerServer} connections per server.
      */
     private void initChunkGetters() {
-        int chunkCount = chunkManager.getChunksCount();
-        int[] remainingChunks = chunkManager.getRemainingChunkIDs();
+        mirrorScheduler = new MirrorScheduler(serverList, maxRatePerServer);
+        chunkScheduler = context.isShared() ?
+                new ChunkScheduler(chunkManager, mirrorScheduler, fileSize, numConnections,
+                        context.getConnectionBudget()) :
+                new ChunkScheduler(chunkManager, mirrorScheduler, fileSize, numConnections);
 
-        for (int chunkID : remainingChunks) {
-            ChunkRange range = calculateChunkByteRange(chunkID, chunkCount);
-            ChunkGetter getter = createGetter(chunkID, range);
-            threadPool.execute(getter);
+        ExecutorService threadPool = context.getThreadPool();
+        int getterCount = (transportMode == TransportMode.HTTP2) ? 1 : numConnections;
+        for (int i = 0; i < getterCount; i++) {
+            Transport transport = context.acquireTransport();
+            ChunkGetter getter = createGetter(transport);
+            getterFutures.add(threadPool.submit(() -> {
+                try {
+                    getter.run();
+                }
+                finally {
+                    context.releaseTransport(transport);
+                }
+            }));
         }
     }
 
     /**
-     * Determine the range for the current Chunk to download from the source file.
-     * Each Chunk will download a unique range (as chunk indices are distinct).
-     * @param chunkIndex - the chunk's index in the source file.
-     * @param chunkCount - the total chunk count.
-     * @return ChunkRange object.
+     * Starts reporting the download progress to the user, unless the file is part of a batch.
      */
-    private ChunkRange calculateChunkByteRange(int chunkIndex, int chunkCount) {
-        return new ChunkRange(chunkIndex, fileSize, chunkCount);
+    private void initProgressReporter() {
+        if (downloadStatus.isShowProgress()) {
+            progressReporter = new ProgressReporter(downloadStatus, mirrorScheduler.getMirrors());
+            progressReporter.start();
+        }
     }
 
     /**
-     * Creates a ChunkGetter object responsible for downloading chunk number <chunkIndex>.
-     * @param chunkIndex - the number of chunk to be downloaded from the file.
-     * @param range - a ChunkRange object indicating the range to be downloaded by the given chunk.
+     * Exposes the internals of the running download over JMX, and adds them to the metrics file dumps,
+     * if the user asked for them.
+     */
+    private void initMetrics() {
+        downloadMetrics = new DownloadMetrics(this, fileSize, chunkManager, chunkScheduler, mirrorScheduler,
+                chunkQueue, bufferPool, metadataManager, downloadStatus, context.getConnectionStats());
+        downloadMetrics.register();
+        if (context.getMetricsExporter() != null) {
+            context.getMetricsExporter().add(downloadMetrics);
+        }
+    }
+
+    /**
+     * Dumps the final metrics of the download, then stops exposing them.
+     */
+    private void closeMetrics() {
+        if (context.getMetricsExporter() != null) {
+            context.getMetricsExporter().remove(downloadMetrics);
+        }
+        downloadMetrics.unregister();
+    }
+
+    /**
+     * Creates a ChunkGetter object downloading the chunks handed out by the scheduler.
+     * In streaming mode, the getter writes directly to the destination file opened by the writer.
+     * @param transport - the transport of the getter, taken from the context.
      * @return a ChunkGetter object.
      */
-    private ChunkGetter createGetter(int chunkIndex, ChunkRange range) {
-        return new ChunkGetter(serverList, range, chunkIndex, chunkManager, chunkQueue, this);
+    private ChunkGetter createGetter(Transport transport) {
+        TokenBucket rateLimit = context.getRateLimit();
+        if (writeMode == WriteMode.MAPPED) {
+            return new ChunkGetter(chunkScheduler, chunkManager, chunkWriter, downloadStatus, this, transport,
+                    rateLimit, mappedDestination);
+        }
+        if (writeMode == WriteMode.STREAMING) {
+            return new ChunkGetter(chunkScheduler, chunkManager, chunkQueue, downloadStatus, this, transport,
+                    rateLimit, chunkWriter.getDestinationChannel());
+        }
+        return new ChunkGetter(chunkScheduler, chunkManager, chunkQueue, downloadStatus, this, transport,
+                rateLimit, bufferPool);
     }
 
     /**
-     * Blocks until all the active threads handled by {@threadpool} are done running.
+     * Blocks until all the getters of this download are done running. Their threads and transports
+     * go back to the context, which closes the connections once all the downloads are done.
      */
-    private void waitForCompletionAndCloseConnections() {
-        threadPool.shutdown();
+    private void waitForGetters() {
         try {
-            threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (Future<?> getterFuture : getterFutures) {
+                getterFuture.get();
+            }
         }
         catch (InterruptedException e) {
             ProgramPrinter.printError("Some connections were interrupted.", e);
         }
+        catch (ExecutionException e) {
+            ProgramPrinter.printError("A connection failed unexpectedly.", e);
+        }
+    }
+
+    /**
+     * Blocks until all the writer threads wrote the remaining chunks, then finalizes the download:
+     * the last written chunks are committed before closing the destination file and clearing the metadata.
+     * The complete file is then renamed from its part file to the destination name.
+     * If the hash of the file does not match the expected one, the download fails before the rename: the part
+     * file and the metadata are cleared, so the next run downloads the whole file again.
+     * If the download was interrupted (only possible for a file of a batch), the written chunks are kept
+     * for the next run.
+     * @returns true if and only if the download succeeded.
+     */
+    private boolean waitForWritersAndFinish() {
+        try {
+            for (Thread writerThread : writerThreadList) {
+                writerThread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            ProgramPrinter.printError("The writers were interrupted.", e);
+            return false;
+        }
+        finally {
+            if (progressReporter != null) {
+                progressReporter.stop();
+            }
+        }
+        if (writeMode == WriteMode.MAPPED && !downloadStatus.isCompleted() && !downloadStatus.isFailed()) {
+            // no writer thread waits for the missing chunks in mapped mode
+            ProgramPrinter.printError(String.format("Some chunks of %s were not downloaded.", fileName));
+            downloadStatus.markFailed();
+        }
+        metadataManager.commit();
+        if (downloadStatus.isFailed()) {
+            Chunk unwritten;
+            while ((unwritten = chunkQueue.poll()) != null) {
+                unwritten.clearData(); // giving the buffer back to the pool shared by the batch
+            }
+            closeWriters();
+            if (!context.isShared()) {
+                System.exit(-1);
+            }
+            return false;
+        }
+        boolean verified = verifyFileHash();
+        closeWriters();
+        if (!verified) {
+            metadataManager.clearFiles();
+            new File(getPartFilePath()).delete();
+            if (!context.isShared()) {
+                System.exit(-1);
+            }
+            return false;
+        }
+        if (!moveToDestination()) {
+            metadataManager.close(); // the next run finds all the chunks written, and renames the file again
+            if (!context.isShared()) {
+                System.exit(-1);
+            }
+            return false;
+        }
+        metadataManager.clearFiles();
+        if (context.isShared()) {
+            return true;
+        }
+        ConnectionStats connectionStats = context.getConnectionStats();
+        ProgramPrinter.printConnectionStats(connectionStats.getConnectCount(), connectionStats.getClientCount(),
+                connectionStats.getRequestCount(), connectionStats.getReuseRatio());
+        for (MirrorStats mirror : mirrorScheduler.getMirrors()) {
+            ProgramPrinter.printMirrorStats(mirror.getAddress(), mirror.getRangeCount(), mirror.getTotalBytes(),
+                    mirror.getBytesPerSecond(), mirror.getFirstByteMillis(), mirror.getFailureCount());
+        }
+        downloadStatus.handleDownloadSuccess();
+        return true;
+    }
+
+    /**
+     * Closes the destination file handles of the writers, and the mapped destination file, if any.
+     */
+    private void closeWriters() {
+        for (ChunkWriter writer : chunkWriterList) {
+            writer.closeWriter();
+        }
+        if (mappedDestination != null) {
+            mappedDestination.close();
+        }
+    }
+
+    /**
+     * Renames the complete part file to the destination name, replacing any file already there, in a single
+     * atomic step where the file system supports it. The directory is synced after, so the rename is as
+     * durable as the data, before the metadata is cleared.
+     * @returns false if the file could not be renamed.
+     */
+    private boolean moveToDestination() {
+        Path partFile = Paths.get(getPartFilePath());
+        Path destinationFile = Paths.get(getDestinationFilePath());
+        try {
+            try {
+                Files.move(partFile, destinationFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(partFile, destinationFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError(String.format("Unable to rename %s to %s.", partFile.getFileName(),
+                    destinationFile.getFileName()), e);
+            return false;
+        }
+        try (FileChannel directory = FileChannel.open(destinationFile.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+        catch (IOException e) {
+            // directories cannot be synced on this platform
+        }
+        return true;
+    }
+
+    /**
+     * Completes the hash of the whole file, if any, and compares it to the expected digest, if given.
+     * @returns false if the hash could not be completed or does not match the expected digest.
+     */
+    private boolean verifyFileHash() {
+        if (fileHasher == null) {
+            return true;
+        }
+        try {
+            String digest = fileHasher.digest();
+            ProgramPrinter.printFileHash(hashAlgorithm.getDisplayName(), digest, fileName);
+            if (expectedHash == null || expectedHash.equals(digest)) {
+                return true;
+            }
+            ProgramPrinter.printError(String.format("%s mismatch, expected %s.", hashAlgorithm.getDisplayName(),
+                    expectedHash));
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to hash the downloaded file.", e);
+        }
+        return false;
     }
 
     /**
-     * Interrupt the download process due to connectivity issues, and abrupt the program run.
+     * Changes the capped rate of the whole download (of the whole batch, in batch mode), while it runs.
+     * @param bytesPerSecond - the new rate, or {@TokenBucket.UNLIMITED}.
+     */
+    public void setMaxRate(long bytesPerSecond) {
+        context.getRateLimit().setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Changes the capped rate of each server, while the download runs.
+     * @param bytesPerSecond - the new rate, or {@TokenBucket.UNLIMITED}.
+     */
+    public void setMaxRatePerServer(long bytesPerSecond) {
+        maxRatePerServer = bytesPerSecond;
+        if (mirrorScheduler != null) {
+            for (MirrorStats mirror : mirrorScheduler.getMirrors()) {
+                mirror.getRateLimit().setBytesPerSecond(bytesPerSecond);
+            }
+        }
+    }
+
+    /**
+     * Interrupt the download process once all the servers are unreachable for too long (failed ranges are
+     * retried until then), and abrupt the program run.
+     * The chunks already written are committed first, so they are not downloaded again on resume.
+     * A file of a batch fails alone instead: its scheduler hands out no more ranges, and its writers stop,
+     * leaving the other files of the batch running.
      */
     public void interruptDownload() {
+        failDownload(String.format("All the servers of %s are unreachable.", fileName),
+                "All the servers are unreachable.");
+    }
+
+    /**
+     * Interrupt the download process once a writer failed to write a run of chunks to the destination file.
+     * The failed chunks are not recorded as written, so the chunks committed before stay valid for a resume,
+     * and the next run downloads the failed ones again.
+     */
+    public void interruptOnWriteFailure() {
+        failDownload(String.format("Unable to write %s to disk.", fileName), "Unable to write the file to disk.");
+    }
+
+    /**
+     * Commits the written chunks, then abrupts the program run, or fails the file alone in a batch.
+     * @param batchMessage - the message shown for a file of a batch.
+     * @param errorMessage - the error shown before exiting.
+     */
+    private void failDownload(String batchMessage, String errorMessage) {
         synchronized (this) {
-            ProgramPrinter.printError("No internet connection.");
+            if (context.isShared()) {
+                if (!downloadStatus.isFailed()) {
+                    ProgramPrinter.printMessage(batchMessage);
+                    chunkScheduler.cancel();
+                    downloadStatus.markFailed();
+                }
+                return;
+            }
+            metadataManager.commit();
+            ProgramPrinter.printError(errorMessage);
             System.exit(-1);
         }
     }
 
+    /* GETTERS & SETTERS */
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getMaxRate() {
+        return context.getRateLimit().getBytesPerSecond();
+    }
+
+    public long getMaxRatePerServer() {
+        return maxRatePerServer;
+    }
+
+    /**
+     * @returns the bytes received from all the servers so far, including the ranges received again after
+     * a failure, or 0 before the download started.
+     */
+    public long getReceivedBytes() {
+        return (downloadMetrics == null) ? 0 : downloadMetrics.getReceivedBytes();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The live internals of a running download, read on demand from the objects running it: the queue and
+ * buffers between the getters and the writers, the retries, the connections, the metadata commits, and
+ * the measurements of each mirror.
+ * Nothing is recorded here: the hot paths only update the striped counters (LongAdder) and histograms
+ * of the objects they already use, without locks, and the values are collected when read.
+ * The download and its mirrors are registered as JMX MBeans (domain "IdcDm"), and can be dumped in the
+ * Prometheus text format by the {@MetricsExporter}.
+ */
+public class DownloadMetrics implements DownloadMetricsMBean {
+
+    private static final String JMX_DOMAIN = "IdcDm";
+
+    private DownloadManager downloadManager;
+    private long fileSize;
+    private ChunkManager chunkManager;
+    private ChunkScheduler chunkScheduler;
+    private MirrorScheduler mirrorScheduler;
+    private PriorityBlockingQueue<Chunk> chunkQueue;
+    private BufferPool bufferPool;
+    private MetadataManager metadataManager;
+    private DownloadStatus downloadStatus;
+    private ConnectionStats connectionStats;
+    private List<ObjectName> registeredNames = new ArrayList<>();
+
+    /**
+     * @param downloadManager - the manager of the download, changing its rate limits.
+     * @param fileSize - the total file size in bytes.
+     * @param chunkManager - the chunk state table.
+     * @param chunkScheduler - the scheduler handing out the ranges.
+     * @param mirrorScheduler - the scheduler of the mirrors, holding their measurements.
+     * @param chunkQueue - the queue of the chunks waiting to be written.
+     * @param bufferPool - the pool of the buffers holding the queued chunks, or null in streaming mode.
+     * @param metadataManager - the metadata manager, timing its commits.
+     * @param downloadStatus - the download status, counting the written bytes.
+     * @param connectionStats - the connections counters of the transports.
+     */
+    public DownloadMetrics(DownloadManager downloadManager, long fileSize, ChunkManager chunkManager,
+                           ChunkScheduler chunkScheduler, MirrorScheduler mirrorScheduler,
+                           PriorityBlockingQueue<Chunk> chunkQueue, BufferPool bufferPool,
+                           MetadataManager metadataManager, DownloadStatus downloadStatus,
+                           ConnectionStats connectionStats) {
+        this.downloadManager = downloadManager;
+        this.fileSize = fileSize;
+        this.chunkManager = chunkManager;
+        this.chunkScheduler = chunkScheduler;
+        this.mirrorScheduler = mirrorScheduler;
+        this.chunkQueue = chunkQueue;
+        this.bufferPool = bufferPool;
+        this.metadataManager = metadataManager;
+        this.downloadStatus = downloadStatus;
+        this.connectionStats = connectionStats;
+    }
+
+    /**
+     * Registers the download and each of its mirrors to the platform MBean server.
+     * A failure is reported, and leaves the download unmonitored over JMX.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String fileKey = ObjectName.quote(getFileName());
+        try {
+            ObjectName downloadName = new ObjectName(JMX_DOMAIN + ":type=Download,name=" + fileKey);
+            server.registerMBean(this, downloadName);
+            registeredNames.add(downloadName);
+            for (MirrorStats mirror : mirrorScheduler.getMirrors()) {
+                ObjectName mirrorName = new ObjectName(JMX_DOMAIN + ":type=Mirror,download=" + fileKey +
+                        ",name=" + ObjectName.quote(mirror.getAddress()));
+                server.registerMBean(mirror, mirrorName);
+                registeredNames.add(mirrorName);
+            }
+        }
+        catch (JMException e) {
+            ProgramPrinter.printMessage(String.format("Unable to register the JMX metrics of %s:\n%s",
+                    getFileName(), e.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Unregisters the MBeans registered by {@register}.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            }
+            catch (JMException e) {
+                // already unregistered
+            }
+        }
+        registeredNames.clear();
+    }
+
+    /**
+     * Adds the download's samples, and its mirrors' samples, to the given snapshot.
+     * @param text - the Prometheus snapshot to add to.
+     */
+    public void collect(PrometheusText text) {
+        String labels = PrometheusText.labels("file", getFileName());
+        text.gauge("file_size_bytes", "Total size of the file.", labels, fileSize);
+        text.gauge("written_bytes", "Bytes of the file written to disk, including previous runs.", labels,
+                getWrittenBytes());
+        text.counter("received_bytes_total", "Bytes received from all the servers.", labels, getReceivedBytes());
+        text.gauge("queued_chunks", "Chunks waiting in the queue of the writers.", labels, getQueuedChunks());
+        text.gauge("buffered_bytes", "Bytes held in the pool buffers (shared by the files of a batch).", labels,
+                getBufferedBytes());
+        text.gauge("writer_lag_bytes", "Bytes downloaded but not written yet.", labels, getWriterLagBytes());
+        text.counter("retries_total", "Failed range requests handed back for a retry.", labels, getRetryCount());
+        text.gauge("active_connections", "Range requests in flight.", labels, getActiveConnections());
+        text.gauge("open_connections", "Connections open (shared by the files of a batch).", labels,
+                getOpenConnections());
+        text.gauge("idle_connections", "Open connections without a request in flight.", labels,
+                getIdleConnections());
+        text.histogram("metadata_save_seconds", "Duration of the metadata group commits.", labels,
+                metadataManager.getCommitHistogram());
+        for (MirrorStats mirror : mirrorScheduler.getMirrors()) {
+            String mirrorLabels = PrometheusText.labels("file", getFileName(), "server", mirror.getAddress());
+            text.counter("mirror_received_bytes_total", "Bytes received from the server.", mirrorLabels,
+                    mirror.getReceivedBytes());
+            text.gauge("mirror_bytes_per_second", "Moving average of a connection's rate to the server.",
+                    mirrorLabels, mirror.getBytesPerSecond());
+            text.counter("mirror_requests_total", "Range requests completed by the server.", mirrorLabels,
+                    mirror.getRangeCount());
+            text.counter("mirror_failures_total", "Range requests failed by the server.", mirrorLabels,
+                    mirror.getFailureCount());
+            text.gauge("mirror_active_connections", "Range requests in flight to the server.", mirrorLabels,
+                    mirror.getActiveConnections());
+            text.histogram("mirror_first_byte_seconds", "Time to the first byte of the range responses.",
+                    mirrorLabels, mirror.getFirstByteHistogram());
+            text.histogram("mirror_request_seconds", "Duration of the range requests.", mirrorLabels,
+                    mirror.getRequestHistogram());
+        }
+    }
+
+    /* GETTERS & SETTERS */
+
+    public String getFileName() {
+        return downloadManager.getFileName();
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getWrittenBytes() {
+        return downloadStatus.getCompletedBytes();
+    }
+
+    public long getReceivedBytes() {
+        long receivedBytes = 0;
+        for (MirrorStats mirror : mirrorScheduler.getMirrors()) {
+            receivedBytes += mirror.getReceivedBytes();
+        }
+        return receivedBytes;
+    }
+
+    public int getQueuedChunks() {
+        return chunkQueue.size();
+    }
+
+    public long getBufferedBytes() {
+        return (bufferPool == null) ? 0 : (long)bufferPool.getBuffersInUse() * bufferPool.getBufferSize();
+    }
+
+    /**
+     * @returns the bytes of the chunks downloaded but not written yet (counting whole chunks).
+     */
+    public long getWriterLagBytes() {
+        return chunkManager.getUnwrittenCount() * Chunk.CHUNK_SIZE;
+    }
+
+    public long getRetryCount() {
+        return chunkScheduler.getRetryCount();
+    }
+
+    public int getActiveConnections() {
+        return chunkScheduler.getInFlightCount();
+    }
+
+    public long getOpenConnections() {
+        return connectionStats.getOpenCount();
+    }
+
+    /**
+     * @returns the open connections without a range in flight. Over HTTP/2 several ranges share
+     * a connection, so no connection is idle while a range is in flight.
+     */
+    public long getIdleConnections() {
+        return Math.max(0, getOpenConnections() - getActiveConnections());
+    }
+
+    public double getMetadataSaveMillisP50() {
+        return metadataManager.getCommitHistogram().getPercentileMillis(0.5);
+    }
+
+    public double getMetadataSaveMillisP99() {
+        return metadataManager.getCommitHistogram().getPercentileMillis(0.99);
+    }
+
+    public long getMaxRate() {
+        return downloadManager.getMaxRate();
+    }
+
+    public void setMaxRate(long bytesPerSecond) {
+        downloadManager.setMaxRate(bytesPerSecond);
+    }
+
+    public long getMaxRatePerServer() {
+        return downloadManager.getMaxRatePerServer();
+    }
+
+    public void setMaxRatePerServer(long bytesPerSecond) {
+        downloadManager.setMaxRatePerServer(bytesPerSecond);
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * The JMX management interface of a running download, registered by {@DownloadMetrics}.
+ * The rate limits are writable, to change them while the download runs.
+ */
+public interface DownloadMetricsMBean {
+
+    String getFileName();
+
+    long getFileSize();
+
+    long getWrittenBytes();
+
+    long getReceivedBytes();
+
+    int getQueuedChunks();
+
+    long getBufferedBytes();
+
+    long getWriterLagBytes();
+
+    long getRetryCount();
+
+    int getActiveConnections();
+
+    long getOpenConnections();
+
+    long getIdleConnections();
+
+    double getMetadataSaveMillisP50();
+
+    double getMetadataSaveMillisP99();
+
+    long getMaxRate();
+
+    void setMaxRate(long bytesPerSecond);
+
+    long getMaxRatePerServer();
+
+    void setMaxRatePerServer(long bytesPerSecond);
+}
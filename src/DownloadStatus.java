@@ -1,60 +1,82 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The progress and completion status of a download, counted without locks: the getters count the bytes
+ * they receive, byte by byte, and the writers count the bytes they write, in striped counters (LongAdder).
+ * Nothing is printed here: the progress is reported by a {@ProgressReporter}, sampling the counters on
+ * its own thread, so neither the getters nor the writers ever wait on the console.
+ */
 public class DownloadStatus {
 
     private long totalFileSize;
-    private long totalCompletedBytes = 0;
-    private int shownPercentage = 0;
-    private boolean isCompleted = false;
+    private long resumedBytes; // bytes completed by the previous runs
+    private LongAdder receivedBytes = new LongAdder(); // bytes of the chunks received by this run
+    private LongAdder writtenBytes = new LongAdder(); // bytes written to disk, including the previous runs
+    private boolean showProgress; // false for the files of a batch, reported once done
+    private volatile boolean isCompleted = false;
+    private volatile boolean isFailed = false;
 
     /**
-     * Creates a status object to represent the download status at any given time, and handle the
-     * user output regarding the download progress.
+     * Creates a status object to represent the download status at any given time.
      * @param totalFileSize - the total file size in bytes.
+     * @param showProgress - true to present the download progress to the user.
      */
-    public DownloadStatus(long totalFileSize) {
+    public DownloadStatus(long totalFileSize, boolean showProgress) {
         this.totalFileSize = totalFileSize;
-        ProgramPrinter.printDownloadPercentage(shownPercentage);
+        this.showProgress = showProgress;
     }
 
     /**
      * Creates a object to represent a resumed download status, after completing <completedByes> bytes.
      * @param totalFileSize - the total file size in bytes.
      * @param completedBytes - the total downloaded bytes completed so far.
+     * @param showProgress - true to present the download progress to the user.
      */
-    public DownloadStatus(long totalFileSize, long completedBytes) {
-        this.totalFileSize = totalFileSize;
-        this.totalCompletedBytes = completedBytes;
-        ProgramPrinter.printMessage("Resuming download...\n");
-        updatePercentage();
+    public DownloadStatus(long totalFileSize, long completedBytes, boolean showProgress) {
+        this(totalFileSize, showProgress);
+        this.resumedBytes = completedBytes;
+        writtenBytes.add(completedBytes);
+        if (showProgress) {
+            ProgramPrinter.printMessage("Resuming download...\n");
+        }
+        checkCompletion();
+    }
+
+    /**
+     * Counts bytes received by a getter, as they are read. A chunk which turns out to be received twice,
+     * or is abandoned midway by a failed request, is taken back with a negative count.
+     * @param bytes - amount of received bytes.
+     */
+    public void addReceivedBytes(long bytes) {
+        receivedBytes.add(bytes);
     }
 
     /**
-     * Increments the {@completedBytes} size by the given number.
+     * Counts the bytes of a chunk written to disk, completing the download once all the bytes are written.
+     * Called concurrently by the writer threads.
      * @param chunkCompletedBytes - amount of completed bytes.
      */
     public void addCompletedBytes(long chunkCompletedBytes) {
-        totalCompletedBytes += chunkCompletedBytes;
-        updatePercentage();
+        writtenBytes.add(chunkCompletedBytes);
+        checkCompletion();
     }
 
     /**
-     * Updates the progress of the download and present it to the user.
+     * Flags the download as completed once all the bytes are written.
      */
-    private void updatePercentage() {
-        synchronized (this) {
-            double percentage = (double) totalCompletedBytes / totalFileSize;
-            int newShownPercentage = (int)(percentage * 100);
-
-            if (newShownPercentage > shownPercentage) {
-                shownPercentage = newShownPercentage;
-                ProgramPrinter.printDownloadPercentage(shownPercentage);
-            }
-
-            if (totalCompletedBytes >= totalFileSize) {
-                isCompleted = true;
-            }
+    private void checkCompletion() {
+        if (writtenBytes.sum() >= totalFileSize) {
+            isCompleted = true;
         }
     }
 
+    /**
+     * Marks the download as failed before its completion, so the writers stop waiting for the missing chunks.
+     */
+    public void markFailed() {
+        isFailed = true;
+    }
+
     /**
      * Show a success message when the progress is complete.
      */
@@ -68,5 +90,38 @@ public class DownloadStatus {
         return isCompleted;
     }
 
+    public boolean isFailed() {
+        return isFailed;
+    }
+
+    public boolean isShowProgress() {
+        return showProgress;
+    }
+
+    public long getTotalFileSize() {
+        return totalFileSize;
+    }
+
+    /**
+     * @returns the bytes written to disk, including the previous runs.
+     */
+    public long getCompletedBytes() {
+        return writtenBytes.sum();
+    }
+
+    /**
+     * @returns the bytes received by this run so far.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    /**
+     * @returns the bytes received so far, including the previous runs: the download progress at the byte
+     * granularity, ahead of the written bytes.
+     */
+    public long getProgressBytes() {
+        return Math.min(totalFileSize, resumedBytes + receivedBytes.sum());
+    }
 
 }
@@ -0,0 +1,107 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Hashes the whole destination file while it is downloaded, so it does not have to be read again once
+ * the download is done. The hash advances over the contiguous prefix of written chunks: the writer hands
+ * over each run of chunks it wrote while their data is still in memory, and a chunk at the end of the
+ * prefix is hashed from that data. Chunks written ahead of the prefix are not held (their buffers go back
+ * to the pool); they are read back from the file, most likely from the page cache, once the prefix
+ * reaches them. So are the chunks written by a previous run, and the chunks streamed to the file by the
+ * getters, which reach the writer without data.
+ * Thread safe: several writers may hand over their chunks.
+ */
+public class FileHasher {
+
+    private HashAlgorithm algorithm;
+    private HashAlgorithm.Hasher hasher;
+    private ChunkManager chunkManager;
+    private long fileSize;
+    private FileChannel dataChannel;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(Chunk.CHUNK_SIZE); // for the chunks read back
+    private int nextChunkIndex = 0; // the first chunk not hashed yet
+    private long hashedBytes = 0;
+
+    /**
+     * @param algorithm - the hash algorithm.
+     * @param chunkManager - the chunk state table, telling which chunks are written.
+     * @param fileSize - the total file size in bytes.
+     */
+    public FileHasher(HashAlgorithm algorithm, ChunkManager chunkManager, long fileSize) {
+        this.algorithm = algorithm;
+        this.hasher = algorithm.newHasher();
+        this.chunkManager = chunkManager;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Hashes the given chunks if they extend the hashed prefix, then advances the prefix over the written
+     * chunks following it. Must be called after the chunks were marked as written, before their data
+     * is cleared.
+     * @param run - adjacent Chunks just written to the file, sorted by their start position.
+     * @throws IOException if a written chunk could not be read back from the file.
+     */
+    public synchronized void hashWrittenChunks(List<Chunk> run) throws IOException {
+        for (Chunk c : run) {
+            if (c.getID() == nextChunkIndex && c.hasData()) {
+                ByteBuffer data = c.getData().duplicate();
+                data.rewind(); // the buffer was consumed by the write
+                hashChunk(data);
+            }
+        }
+        advance();
+    }
+
+    /**
+     * Completes the hash, reading back the written chunks not hashed yet.
+     * @returns the digest of the whole file, in lowercase hexadecimal.
+     * @throws IOException if the file is not completely written, or could not be read.
+     */
+    public synchronized String digest() throws IOException {
+        advance();
+        if (hashedBytes != fileSize) {
+            throw new EOFException("The destination file is not completely written.");
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Reads back and hashes the written chunks at the end of the hashed prefix.
+     */
+    private void advance() throws IOException {
+        while (nextChunkIndex < chunkManager.getChunksCount() &&
+                chunkManager.getChunkState(nextChunkIndex) == ChunkManager.WRITTEN) {
+            readBuffer.clear();
+            readBuffer.limit((int)Math.min(Chunk.CHUNK_SIZE, fileSize - hashedBytes));
+            while (readBuffer.hasRemaining()) {
+                if (dataChannel.read(readBuffer, hashedBytes + readBuffer.position()) < 0) {
+                    throw new EOFException("The destination file is shorter than its written chunks.");
+                }
+            }
+            readBuffer.flip();
+            hashChunk(readBuffer);
+        }
+    }
+
+    /**
+     * Hashes the data of the next chunk of the prefix.
+     */
+    private void hashChunk(ByteBuffer data) {
+        hasher.update(data);
+        hashedBytes += data.remaining();
+        nextChunkIndex++;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setDataChannel(FileChannel dataChannel) {
+        this.dataChannel = dataChannel;
+    }
+}
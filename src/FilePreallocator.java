@@ -0,0 +1,60 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A static class to allocate the whole destination file up front, before its chunks are written in
+ * arbitrary order, so the file system can lay it out in a few contiguous extents instead of growing it
+ * piece by piece.
+ * The JDK only extends a file sparsely (setLength), so the blocks are allocated by the util-linux
+ * fallocate command, which reserves them without writing them (ext4, XFS, btrfs, tmpfs...).
+ * Where it is missing or not supported by the file system, the file is only extended, sparsely.
+ */
+public class FilePreallocator {
+
+    private static final String FALLOCATE_COMMAND = "fallocate";
+    private static final long FALLOCATE_TIMEOUT = 30; // max wait time (in seconds) for the allocation
+
+    /**
+     * Creates the file if needed, and allocates it to the given size. The data already in the file is kept.
+     * @param file - the file to allocate.
+     * @param size - the file size, in bytes.
+     * @returns true if the blocks were allocated, false if the file was only extended (sparse).
+     * @throws IOException if the file could not be created or extended.
+     */
+    public static boolean preallocate(File file, long size) throws IOException {
+        try (RandomAccessFile created = new RandomAccessFile(file, "rw")) {
+            if (allocate(file, size) && created.length() == size) {
+                return true;
+            }
+            created.setLength(size);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the fallocate command on the file.
+     * @returns true if and only if the command allocated the blocks.
+     */
+    private static boolean allocate(File file, long size) {
+        try {
+            Process fallocate = new ProcessBuilder(FALLOCATE_COMMAND, "--length", Long.toString(size), file.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!fallocate.waitFor(FALLOCATE_TIMEOUT, TimeUnit.SECONDS)) {
+                fallocate.destroy();
+                return false;
+            }
+            return fallocate.exitValue() == 0;
+        }
+        catch (IOException e) {
+            return false; // no fallocate command (not Linux)
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * The available algorithms for hashing the downloaded data.
+ */
+public enum HashAlgorithm {
+
+    /**
+     * SHA-256, as printed by sha256sum.
+     */
+    SHA256("SHA-256", 32),
+
+    /**
+     * SHA-512, as printed by sha512sum.
+     */
+    SHA512("SHA-512", 64),
+
+    /**
+     * CRC-32C (Castagnoli), hardware accelerated: detects corruption, not tampering.
+     */
+    CRC32C("CRC-32C", 4);
+
+    private String displayName;
+    private int digestLength; // in bytes
+
+    HashAlgorithm(String displayName, int digestLength) {
+        this.displayName = displayName;
+        this.digestLength = digestLength;
+    }
+
+    /**
+     * Parses an algorithm name given as a program argument (case insensitive, dashes ignored).
+     * @param name - the algorithm name.
+     * @returns the matching HashAlgorithm, or null if no such algorithm exists.
+     */
+    public static HashAlgorithm fromName(String name) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.name().equalsIgnoreCase(name.replace("-", ""))) return algorithm;
+        }
+        return null;
+    }
+
+    /**
+     * @param hexDigest - a digest in hexadecimal.
+     * @returns the algorithm producing digests of that length, or null if there is none.
+     */
+    public static HashAlgorithm fromDigest(String hexDigest) {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.digestLength * 2 == hexDigest.length()) return algorithm;
+        }
+        return null;
+    }
+
+    /**
+     * @returns a new, empty hasher running this algorithm.
+     */
+    public Hasher newHasher() {
+        if (this == CRC32C) {
+            return new Hasher(new CRC32C());
+        }
+        try {
+            return new Hasher(MessageDigest.getInstance(displayName));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(displayName + " is not supported by this runtime.", e);
+        }
+    }
+
+    /**
+     * An incremental hash, backed by either a MessageDigest or a Checksum. Not thread safe.
+     */
+    public static class Hasher {
+
+        private MessageDigest messageDigest;
+        private Checksum checksum;
+
+        private Hasher(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        private Hasher(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        /**
+         * Hashes the remaining bytes of the given buffer, leaving its position unchanged.
+         * @param data - the next bytes to hash.
+         */
+        public void update(ByteBuffer data) {
+            ByteBuffer view = data.duplicate();
+            if (messageDigest != null) {
+                messageDigest.update(view);
+            }
+            else {
+                checksum.update(view);
+            }
+        }
+
+        /**
+         * Completes the hash, and resets the hasher.
+         * @returns the digest in lowercase hexadecimal.
+         */
+        public String digest() {
+            if (messageDigest != null) {
+                StringBuilder hex = new StringBuilder();
+                for (byte b : messageDigest.digest()) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            }
+            String hex = String.format("%08x", checksum.getValue());
+            checksum.reset();
+            return hex;
+        }
+    }
+
+    /* GETTERS & SETTERS */
+
+    public String getDisplayName() {
+        return displayName;
+    }
+}
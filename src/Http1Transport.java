@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The HTTP/1.1 transport: ranges are fetched synchronously, on the calling getter's thread, one after the
+ * other over a persistent (keep-alive) connection per server.
+ * Not thread safe: each getter owns its own transport, and so its own connections.
+ */
+public class Http1Transport implements Transport {
+
+    private static final String HEAD_REQUEST_METHOD = "HEAD";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // buffer size (in bytes) used when reading a response body
+    private static final int CONNECTION_TIMEOUT = 2000; // max wait time (in ms) for trying to connect/read to/from a the server
+    private static final int MAX_REDIRECTS = 5; // max number of redirects followed for a single range request
+
+    private ConnectionStats connectionStats;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private Map<String, HttpRangeConnection> connections = new HashMap<>(); // persistent connection per server
+    private Map<String, URL> resolvedAddresses = new HashMap<>(); // server address after following redirects
+
+    /**
+     * Creates a transport with no connection yet.
+     * @param connectionStats - the object counting the connections and requests of all the transports.
+     */
+    public Http1Transport(ConnectionStats connectionStats) {
+        this.connectionStats = connectionStats;
+    }
+
+    @Override
+    public RemoteFileInfo probe(String address) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (new URL(address)).openConnection();
+        connection.setRequestMethod(HEAD_REQUEST_METHOD);
+        long fileSize = connection.getContentLengthLong();
+        String validator = connection.getHeaderField(ETAG_HEADER);
+        if (validator == null) {
+            validator = connection.getHeaderField(LAST_MODIFIED_HEADER);
+        }
+        if (fileSize < 0) {
+            throw new IOException("The server did not report the file size.");
+        }
+        return new RemoteFileInfo(fileSize, validator);
+    }
+
+    /**
+     * Fetches the range synchronously: the returned future is already completed.
+     */
+    @Override
+    public CompletableFuture<Void> fetch(ChunkRange range, String address, RangeSink sink) {
+        try {
+            InputStream body = requestRange(range, address);
+            sink.onResponse();
+            readBody(body, sink);
+            return CompletableFuture.completedFuture(null);
+        }
+        catch (IOException | InterruptedException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Reads a response body into the sink, through this transport's read buffer, until the body ends or the
+     * sink needs no more data. Package-private, so the read loop can be benchmarked over an in-memory stream.
+     * @param body - the response body.
+     * @param sink - the sink of the fetched range.
+     * @throws IOException if the body could not be read, was too short, or the data could not be written.
+     * @throws InterruptedException if interrupted while waiting for the rate limit or a buffer.
+     */
+    void readBody(InputStream body, RangeSink sink) throws IOException, InterruptedException {
+        ReadableByteChannel source = Channels.newChannel(body);
+        boolean accepting = true;
+        while (accepting) {
+            readBuffer.clear();
+            if (source.read(readBuffer) < 0) {
+                break;
+            }
+            readBuffer.flip();
+            accepting = sink.write(readBuffer);
+        }
+        sink.finish();
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Closes all the persistent connections of this transport.
+     */
+    @Override
+    public void close() {
+        for (HttpRangeConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Sends the range request over the persistent connection to the given server,
+     * following redirects (which are remembered for the next requests).
+     * @param range - the range to request.
+     * @param serverAddress - the URL of the file on the chosen server.
+     * @returns the response body input stream.
+     * @throws IOException if the request failed or the server did not return the range (then retried).
+     */
+    private InputStream requestRange(ChunkRange range, String serverAddress) throws IOException {
+        URL url = resolvedAddresses.get(serverAddress);
+        if (url == null) {
+            url = new URL(serverAddress);
+        }
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpRangeConnection.RangeResponse response = getConnection(url).requestRange(url, range.httpByteRange());
+            if (response.isRedirect()) {
+                url = new URL(url, response.getLocation());
+                continue;
+            }
+            // a server ignoring the Range header sends the whole file, which is only usable for the first chunk
+            boolean isRangeResponse = response.getStatus() == HttpURLConnection.HTTP_PARTIAL ||
+                    (response.getStatus() == HttpURLConnection.HTTP_OK && range.start() == 0);
+            if (!isRangeResponse) {
+                throw new IOException("Unexpected response status: " + response.getStatus());
+            }
+            range.checkResponse(response.getStatus(), response.getContentRange(), response.getContentLength());
+            resolvedAddresses.put(serverAddress, url);
+            return response.getBody();
+        }
+        throw new IOException("Too many redirects.");
+    }
+
+    /**
+     * @param url - a URL to download from.
+     * @returns the persistent connection to the URL's server, created if needed.
+     */
+    private HttpRangeConnection getConnection(URL url) {
+        return connections.computeIfAbsent(HttpRangeConnection.serverKey(url),
+                key -> new HttpRangeConnection(url, CONNECTION_TIMEOUT, connectionStats));
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP/2 transport: ranges are fetched asynchronously with java.net.http.HttpClient, and multiplexed
+ * as concurrent streams over a few connections per server, so the number of ranges in flight does not
+ * depend on the number of connections or threads. Servers not supporting HTTP/2 are spoken to in HTTP/1.1,
+ * with a connection per range in flight.
+ * Each HttpClient holds a single HTTP/2 connection per server, so a server gets its own few clients,
+ * used in turn.
+ * The responses are handled by a shared executor whose tasks never block, except on disk writes: a piece
+ * of a body waiting for the capped rates or for a free buffer is held by its subscriber, which asks for
+ * the next piece only once the held ones are written, and resumes on the executor once they are due.
+ * Thread safe: a single transport is shared by the whole download.
+ */
+public class Http2Transport implements Transport {
+
+    public static final int DEFAULT_CONNECTIONS_PER_SERVER = 2; // connections per server, unless set by the user
+
+    private static final String RANGE_HEADER = "Range";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    private static final Duration CONNECTION_TIMEOUT = Duration.ofMillis(2000); // max wait time for connecting to a server
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofMillis(10000); // max wait time for the response headers
+    private static final Duration READ_TIMEOUT = Duration.ofMillis(10000); // max wait time for the next data of a body
+    private static final long BUFFER_RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(5); // wait time for a free buffer
+
+    private int connectionsPerServer;
+    private ConnectionStats connectionStats;
+    private ExecutorService executor; // runs the clients' response handling, shared by all the clients
+    private Map<String, HttpClient[]> clients = new ConcurrentHashMap<>(); // the clients of each server
+    private AtomicInteger nextClient = new AtomicInteger(0);
+    private Set<SinkSubscriber> subscribers = ConcurrentHashMap.newKeySet(); // the response bodies being read
+    private ScheduledExecutorService watchdog; // fails the stalled transfers
+
+    /**
+     * Creates a transport with no connection yet.
+     * @param connectionsPerServer - the number of connections (each multiplexing many ranges) per server.
+     * @param connectionStats - the object counting the connections and requests.
+     */
+    public Http2Transport(int connectionsPerServer, ConnectionStats connectionStats) {
+        this.connectionsPerServer = connectionsPerServer;
+        this.connectionStats = connectionStats;
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = READ_TIMEOUT.toMillis() / 4;
+        watchdog.scheduleAtFixedRate(this::expireStalledTransfers, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public RemoteFileInfo probe(String address) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(toURI(address))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(RESPONSE_TIMEOUT)
+                .build();
+        try {
+            HttpResponse<Void> response = getClient(address).send(request, HttpResponse.BodyHandlers.discarding());
+            long fileSize = response.headers().firstValueAsLong(CONTENT_LENGTH_HEADER).orElse(-1);
+            if (response.statusCode() != HttpURLConnection.HTTP_OK || fileSize < 0) {
+                throw new IOException("The server did not report the file size.");
+            }
+            String validator = response.headers().firstValue(ETAG_HEADER)
+                    .orElse(response.headers().firstValue(LAST_MODIFIED_HEADER).orElse(null));
+            return new RemoteFileInfo(fileSize, validator);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while probing the server.");
+        }
+    }
+
+    /**
+     * Sends the range request and returns at once; the response body is pushed into the sink by the
+     * client's threads as it arrives, one piece at a time.
+     */
+    @Override
+    public CompletableFuture<Void> fetch(ChunkRange range, String address, RangeSink sink) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(toURI(address))
+                    .header(RANGE_HEADER, range.httpByteRange())
+                    .timeout(RESPONSE_TIMEOUT)
+                    .build();
+        }
+        catch (MalformedURLException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        connectionStats.addRequest();
+        HttpResponse.BodyHandler<Void> bodyHandler = responseInfo -> {
+            try {
+                checkRangeResponse(responseInfo.statusCode(), responseInfo.headers(), range);
+            }
+            catch (IOException e) {
+                return HttpResponse.BodySubscribers.discarding(); // failed below
+            }
+            sink.onResponse();
+            return new SinkSubscriber(sink);
+        };
+        return getClient(address).sendAsync(request, bodyHandler).thenApply(response -> {
+            try {
+                checkRangeResponse(response.statusCode(), response.headers(), range);
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    /**
+     * Stops the threads handling and watching the responses. The clients' connections are closed once unreachable.
+     */
+    @Override
+    public void close() {
+        watchdog.shutdownNow();
+        executor.shutdownNow();
+        for (HttpClient[] serverClients : clients.values()) {
+            for (int i = 0; i < serverClients.length; i++) {
+                connectionStats.addClosedClient();
+            }
+        }
+        clients.clear();
+    }
+
+    /**
+     * Checks that the response carries the requested range: a server ignoring the Range header sends the
+     * whole file, which is only usable for the first chunk (see {@ChunkRange.checkResponse}).
+     * @param status - the response status code.
+     * @param headers - the response headers.
+     * @param range - the requested range.
+     * @throws IOException if the response carries other bytes than the range.
+     */
+    private static void checkRangeResponse(int status, HttpHeaders headers, ChunkRange range) throws IOException {
+        boolean isRangeResponse = status == HttpURLConnection.HTTP_PARTIAL ||
+                (status == HttpURLConnection.HTTP_OK && range.start() == 0);
+        if (!isRangeResponse) {
+            throw new IOException("Unexpected response status: " + status);
+        }
+        long contentLength;
+        try {
+            contentLength = headers.firstValueAsLong(CONTENT_LENGTH_HEADER).orElse(-1);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + headers.firstValue(CONTENT_LENGTH_HEADER).orElse(""), e);
+        }
+        range.checkResponse(status, headers.firstValue(CONTENT_RANGE_HEADER).orElse(null), contentLength);
+    }
+
+    /**
+     * @param address - the URL of the file on a server.
+     * @returns the next client of the given server, in turn, the server's clients being created if needed.
+     */
+    private HttpClient getClient(String address) {
+        HttpClient[] serverClients = clients.computeIfAbsent(address, key -> {
+            HttpClient[] created = new HttpClient[connectionsPerServer];
+            for (int i = 0; i < created.length; i++) {
+                created[i] = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .connectTimeout(CONNECTION_TIMEOUT)
+                        .executor(executor)
+                        .build();
+                connectionStats.addClient();
+            }
+            return created;
+        });
+        return serverClients[Math.floorMod(nextClient.getAndIncrement(), serverClients.length)];
+    }
+
+    /**
+     * @param address - a URL given by the user.
+     * @returns the URL as a URI.
+     * @throws MalformedURLException if the address is not a valid URL.
+     */
+    private static URI toURI(String address) throws MalformedURLException {
+        try {
+            return URI.create(address);
+        }
+        catch (IllegalArgumentException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+    }
+
+    /**
+     * Fails the transfers whose response body did not deliver any data for longer than the read timeout:
+     * the client's own timeout covers the response headers only.
+     */
+    private void expireStalledTransfers() {
+        long now = System.nanoTime();
+        for (SinkSubscriber subscriber : subscribers) {
+            subscriber.expireIfStalled(now);
+        }
+    }
+
+    /**
+     * Pushes the response body into the sink, one piece at a time. Once the sink stops accepting data
+     * before the end of the range (truncated by a split), the rest of the response is cancelled.
+     * The subscriber never blocks the executor: each piece received is admitted by the sink's token buckets,
+     * and held until it is due and a buffer is free for it (see {@RangeSink.writeAvailable}), the next
+     * piece being requested only once every held piece is written.
+     * The body is read under the subscriber's lock, and a transfer holding pieces is never failed as stalled.
+     */
+    private class SinkSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private RangeSink sink;
+        private Flow.Subscription subscription;
+        private Deque<ByteBuffer> pending = new ArrayDeque<>(); // the received pieces not written yet
+        private boolean admitted = false; // true once the first pending piece was admitted by the sink
+        private boolean accepting = true;
+        private boolean completed = false; // true once the whole body was received
+        private volatile boolean holding = false; // true while received pieces wait to be written
+        private volatile long lastActivityTime = System.nanoTime(); // in ns
+        private CompletableFuture<Void> result = new CompletableFuture<>();
+
+        SinkSubscriber(RangeSink sink) {
+            this.sink = sink;
+            subscribers.add(this);
+            result.whenComplete((body, error) -> subscribers.remove(this));
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public synchronized void onNext(List<ByteBuffer> items) {
+            if (!result.isDone()) {
+                holding = true;
+                pending.addAll(items);
+                drain();
+            }
+            lastActivityTime = System.nanoTime();
+        }
+
+        /**
+         * Writes the pending pieces into the sink, as long as they are due and a buffer is free for them,
+         * then asks for the next ones once they are all written. Called under the subscriber's lock.
+         */
+        private void drain() {
+            try {
+                while (!pending.isEmpty()) {
+                    ByteBuffer item = pending.peek();
+                    if (!accepting) {
+                        pending.clear();
+                        break;
+                    }
+                    if (!admitted) {
+                        sink.admit(item.remaining());
+                        admitted = true;
+                    }
+                    long wait = sink.getAdmissionWait();
+                    if (wait > 0) {
+                        resumeAfter(Math.min(wait, TokenBucket.MAX_SLEEP_NANOS)); // re-checks a rate change
+                        return;
+                    }
+                    accepting = sink.writeAvailable(item);
+                    if (accepting && item.hasRemaining()) {
+                        resumeAfter(BUFFER_RETRY_DELAY);
+                        return;
+                    }
+                    pending.poll();
+                    admitted = false;
+                }
+            }
+            catch (IOException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+                return;
+            }
+            holding = false;
+            lastActivityTime = System.nanoTime();
+            if (!accepting && !sink.isFullyReceived()) {
+                subscription.cancel();
+                result.complete(null);
+                return;
+            }
+            if (completed) {
+                finish();
+            }
+            else {
+                subscription.request(1);
+            }
+        }
+
+        /**
+         * Resumes writing the pending pieces on the executor, after the given delay.
+         * @param delayNanos - the delay (in ns).
+         */
+        private void resumeAfter(long delayNanos) {
+            try {
+                watchdog.schedule(() -> {
+                    try {
+                        executor.execute(this::resume);
+                    }
+                    catch (RejectedExecutionException e) {
+                        abandon();
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                abandon();
+            }
+        }
+
+        private synchronized void resume() {
+            if (!result.isDone()) {
+                drain();
+            }
+        }
+
+        /**
+         * Fails the transfer once the transport was closed.
+         */
+        private synchronized void abandon() {
+            if (!result.isDone()) {
+                subscription.cancel();
+                result.completeExceptionally(new IOException("The transport was closed."));
+            }
+        }
+
+        /**
+         * Cancels the transfer if it delivered no data for longer than the read timeout.
+         * @param now - the current time (in ns).
+         */
+        void expireIfStalled(long now) {
+            if (holding || now - lastActivityTime < READ_TIMEOUT.toNanos()) {
+                return;
+            }
+            synchronized (this) {
+                if (subscription != null && !holding && !result.isDone()) {
+                    subscription.cancel();
+                    result.completeExceptionally(new HttpTimeoutException("Response body stalled."));
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            completed = true;
+            if (!holding && !result.isDone()) {
+                finish();
+            }
+        }
+
+        /**
+         * Completes the transfer once the whole body was received and written.
+         */
+        private void finish() {
+            try {
+                sink.finish();
+                result.complete(null);
+            }
+            catch (EOFException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> getBody() {
+            return result;
+        }
+    }
+}
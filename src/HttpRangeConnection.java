@@ -0,0 +1,435 @@
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A persistent HTTP/1.1 connection to a single server, used to send successive range requests
+ * over the same socket (keep-alive). Each response body must be read to its end before the next
+ * request is sent; otherwise the connection is closed and a new one is established.
+ * HTTPS connections check the server certificate and its host name (as HttpsURLConnection does). The proxy
+ * of the server is chosen by the default ProxySelector, from the http(s).proxyHost and socksProxyHost system
+ * properties: HTTPS goes through an HTTP proxy in a CONNECT tunnel.
+ * Not thread safe: each getter owns its connections.
+ */
+public class HttpRangeConnection {
+
+    private static final String CRLF = "\r\n";
+    private static final String USER_AGENT = "IdcDm";
+    private static final int HTTP_PORT = 80;
+    private static final int HTTPS_PORT = 443;
+    private static final int MAX_DRAINED_BODY_SIZE = 64 * 1024; // max unwanted body size read to keep the connection
+    private static final String ENDPOINT_IDENTIFICATION = "HTTPS"; // the host name check of the TLS handshake
+
+    private String host;
+    private int port;
+    private boolean secure;
+    private int timeout;
+    private ConnectionStats connectionStats;
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private BodyInputStream currentBody;
+    private boolean reusable = false;
+    private boolean proxied = false; // true when plain requests go through an HTTP proxy
+
+    /**
+     * A response to a range request.
+     */
+    public static class RangeResponse {
+        private int status;
+        private String location;
+        private String contentRange;
+        private long contentLength;
+        private InputStream body;
+
+        private RangeResponse(int status, String location, String contentRange, long contentLength,
+                              InputStream body) {
+            this.status = status;
+            this.location = location;
+            this.contentRange = contentRange;
+            this.contentLength = contentLength;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @returns the Content-Range header value, or null if there is none.
+         */
+        public String getContentRange() {
+            return contentRange;
+        }
+
+        /**
+         * @returns the Content-Length header value, or -1 if there is none.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public boolean isRedirect() {
+            return status >= 300 && status < 400 && location != null;
+        }
+    }
+
+    /**
+     * Creates a (not yet connected) connection to the server of the given URL.
+     * @param url - any URL on the server.
+     * @param timeout - max wait time (in ms) for connecting to and reading from the server.
+     * @param connectionStats - the statistics object counting connections and requests.
+     */
+    public HttpRangeConnection(URL url, int timeout, ConnectionStats connectionStats) {
+        this.secure = url.getProtocol().equalsIgnoreCase("https");
+        this.host = url.getHost();
+        this.port = (url.getPort() != -1) ? url.getPort() : (secure ? HTTPS_PORT : HTTP_PORT);
+        this.timeout = timeout;
+        this.connectionStats = connectionStats;
+    }
+
+    /**
+     * @returns a key identifying the server of the given URL, for looking up its connection.
+     */
+    public static String serverKey(URL url) {
+        return String.format("%s://%s:%d", url.getProtocol().toLowerCase(Locale.ROOT),
+                url.getHost().toLowerCase(Locale.ROOT), url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * Sends a range request for the given URL, reusing the open connection when possible.
+     * If a reused connection turns out to be closed by the server, the request is sent once
+     * again over a new connection.
+     * @param url - the URL of the file, on this connection's server.
+     * @param byteRange - the value of the Range header.
+     * @returns the response, whose body must be read to its end to keep the connection reusable.
+     * @throws IOException if the request failed.
+     */
+    public RangeResponse requestRange(URL url, String byteRange) throws IOException {
+        boolean reusing = prepareConnection();
+        try {
+            return sendRequest(url, byteRange);
+        }
+        catch (IOException e) {
+            close();
+            if (!reusing) {
+                throw e;
+            }
+            prepareConnection();
+            return sendRequest(url, byteRange);
+        }
+    }
+
+    /**
+     * Makes sure an open connection is available, reusing the current one if its last body was fully read.
+     * A new HTTPS connection completes its TLS handshake here, so the certificate is checked before any
+     * request is sent.
+     * @returns true if the current connection is reused, false if a new one was established.
+     * @throws IOException if the connection could not be established, or the server could not be trusted.
+     */
+    private boolean prepareConnection() throws IOException {
+        if (socket != null && reusable && (currentBody == null || currentBody.isFullyRead())) {
+            return true;
+        }
+        close();
+        Proxy proxy = selectProxy();
+        proxied = false;
+        try {
+            if (proxy.type() == Proxy.Type.HTTP) {
+                InetSocketAddress proxyAddress = (InetSocketAddress) proxy.address();
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(proxyAddress.getHostString(), proxyAddress.getPort()), timeout);
+                socket.setSoTimeout(timeout);
+                if (secure) {
+                    openTunnel();
+                }
+                else {
+                    proxied = true;
+                }
+            }
+            else {
+                socket = new Socket(proxy); // direct, or through a SOCKS proxy
+                socket.connect(proxy.type() == Proxy.Type.DIRECT ? new InetSocketAddress(host, port) :
+                        InetSocketAddress.createUnresolved(host, port), timeout);
+                socket.setSoTimeout(timeout);
+            }
+            if (secure) {
+                socket = startTls(socket);
+            }
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException e) {
+            if (socket != null) {
+                socket.close(); // never counted as connected
+                socket = null;
+            }
+            throw e;
+        }
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        connectionStats.addConnect();
+        return false;
+    }
+
+    /**
+     * @returns the proxy to reach this connection's server through, chosen by the default ProxySelector
+     * (Proxy.NO_PROXY if none is set).
+     */
+    private Proxy selectProxy() {
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return Proxy.NO_PROXY;
+        }
+        List<Proxy> proxies;
+        try {
+            proxies = selector.select(new URI(secure ? "https" : "http", null, host, port, "/", null, null));
+        }
+        catch (java.net.URISyntaxException | IllegalArgumentException e) {
+            proxies = Collections.emptyList();
+        }
+        return proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+    }
+
+    /**
+     * Asks the HTTP proxy the socket is connected to for a tunnel to this connection's server (CONNECT).
+     * The response is read without buffering, so no byte of the TLS handshake following it is consumed.
+     * @throws IOException if the proxy refused the tunnel.
+     */
+    private void openTunnel() throws IOException {
+        String authority = host + ":" + port;
+        String request = "CONNECT " + authority + " HTTP/1.1" + CRLF +
+                "Host: " + authority + CRLF +
+                "User-Agent: " + USER_AGENT + CRLF + CRLF;
+        OutputStream proxyOut = socket.getOutputStream();
+        proxyOut.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        proxyOut.flush();
+        InputStream proxyIn = socket.getInputStream();
+        String statusLine = readLine(proxyIn);
+        String[] statusParts = statusLine.split(" ", 3);
+        if (statusParts.length < 2 || !statusParts[1].equals("200")) {
+            throw new IOException("The proxy refused the tunnel to " + authority + ": " + statusLine);
+        }
+        while (!readLine(proxyIn).isEmpty());
+    }
+
+    /**
+     * Layers TLS over the given connected socket, and completes the handshake: the certificate must be
+     * trusted and issued for this connection's host name, which is also sent as the SNI server name.
+     * @param plainSocket - a socket connected to the server, or tunneled to it.
+     * @returns the TLS socket.
+     * @throws IOException if the handshake failed, or the server could not be trusted.
+     */
+    private Socket startTls(Socket plainSocket) throws IOException {
+        SSLSocket tlsSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                .createSocket(plainSocket, host, port, true);
+        SSLParameters parameters = tlsSocket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm(ENDPOINT_IDENTIFICATION);
+        if (!isIpLiteral(host)) {
+            parameters.setServerNames(Collections.singletonList(new SNIHostName(host)));
+        }
+        tlsSocket.setSSLParameters(parameters);
+        tlsSocket.startHandshake();
+        return tlsSocket;
+    }
+
+    /**
+     * @returns true if the host is an IPv4 or IPv6 address, which cannot be sent as an SNI server name.
+     */
+    private static boolean isIpLiteral(String host) {
+        return host.startsWith("[") || host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    /**
+     * Writes the request and parses the response status line and headers.
+     */
+    private RangeResponse sendRequest(URL url, String byteRange) throws IOException {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        String hostHeader = (url.getPort() == -1) ? host : host + ":" + port;
+        String target = proxied ? "http://" + hostHeader + path : path; // a proxy is sent the absolute URL
+        String request = "GET " + target + " HTTP/1.1" + CRLF +
+                "Host: " + hostHeader + CRLF +
+                "Range: " + byteRange + CRLF +
+                "User-Agent: " + USER_AGENT + CRLF +
+                "Accept-Encoding: identity" + CRLF +
+                "Connection: keep-alive" + CRLF + CRLF;
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        connectionStats.addRequest();
+
+        String statusLine = readLine();
+        String[] statusParts = statusLine.split(" ", 3);
+        if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid HTTP response: " + statusLine);
+        }
+        int status = parseNumber(statusParts[1], "status").intValue();
+        boolean keepAlive = statusParts[0].equals("HTTP/1.1");
+        long contentLength = -1;
+        String location = null;
+        String contentRange = null;
+
+        String header;
+        while (!(header = readLine()).isEmpty()) {
+            int separator = header.indexOf(':');
+            if (separator < 0) continue;
+            String name = header.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(separator + 1).trim();
+            switch (name) {
+                case "content-length":
+                    contentLength = parseNumber(value, "Content-Length");
+                    if (contentLength < 0) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                    break;
+                case "content-range":
+                    contentRange = value;
+                    break;
+                case "connection":
+                    keepAlive = value.equalsIgnoreCase("keep-alive") ||
+                            (keepAlive && !value.equalsIgnoreCase("close"));
+                    break;
+                case "location":
+                    location = value;
+                    break;
+                case "transfer-encoding":
+                    if (!value.equalsIgnoreCase("identity")) {
+                        throw new IOException("Unsupported transfer encoding: " + value);
+                    }
+                    break;
+            }
+        }
+
+        reusable = keepAlive && contentLength >= 0;
+        currentBody = new BodyInputStream(in, contentLength);
+        if (status != 200 && status != 206) {
+            discardBody(contentLength);
+        }
+        return new RangeResponse(status, location, contentRange, contentLength, currentBody);
+    }
+
+    /**
+     * @returns the given response field as a number.
+     * @throws IOException if the field is not a number, as in an invalid response.
+     */
+    private static Long parseNumber(String value, String field) throws IOException {
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid %s in the response: %s", field, value), e);
+        }
+    }
+
+    /**
+     * Reads and discards an unwanted response body (redirects, errors) if it is small enough,
+     * so the connection can be reused. Otherwise the connection will not be reused.
+     */
+    private void discardBody(long contentLength) throws IOException {
+        if (contentLength >= 0 && contentLength <= MAX_DRAINED_BODY_SIZE) {
+            while (currentBody.read() != -1);
+        }
+        else {
+            reusable = false;
+        }
+    }
+
+    /**
+     * Reads a single header line, without its line terminator.
+     */
+    private String readLine() throws IOException {
+        return readLine(in);
+    }
+
+    /**
+     * Reads a single header line from the given stream, without its line terminator.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Connection closed by the server.");
+            }
+            if (c != '\r') line.append((char)c);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Closes the underlying socket, if open.
+     */
+    public void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // the connection is discarded anyway
+            }
+            connectionStats.addDisconnect();
+        }
+        socket = null;
+        currentBody = null;
+        reusable = false;
+    }
+
+    /**
+     * An input stream over a single response body, limited to the response's content length.
+     * Closing it does not close the connection.
+     */
+    private static class BodyInputStream extends InputStream {
+        private InputStream in;
+        private long remaining; // negative when the body is delimited by the connection closing
+
+        BodyInputStream(InputStream in, long contentLength) {
+            this.in = in;
+            this.remaining = contentLength;
+        }
+
+        boolean isFullyRead() {
+            return remaining == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) return -1;
+            int b = in.read();
+            if (b >= 0 && remaining > 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) return -1;
+            int toRead = (remaining > 0) ? (int)Math.min(length, remaining) : length;
+            int bytesRead = in.read(buffer, offset, toRead);
+            if (bytesRead > 0 && remaining > 0) remaining -= bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public void close() {
+            // the underlying connection stays open for the next request
+        }
+    }
+}
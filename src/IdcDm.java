@@ -7,11 +7,23 @@ public class IdcDm {
      * @param args - terminal arguments.
      */
     public static void main(String[] args) {
-        if (args.length < 1 || args.length > 2) {
+        if (!UserInputHandler.isValidUsage(args)) {
             handleWrongArgumentsUsage();
         }
         else {
             ProgramInput programInput = UserInputHandler.parseArguments(args);
+            // the digest read from the hash file, checked before any transfer
+            if (!UserInputHandler.isMatchingDigest(programInput.getHashAlgorithm(), programInput.getExpectedHash(),
+                    programInput.getHashFile())) {
+                System.exit(-1);
+            }
+            if (programInput.getBatchFile() != null) {
+                BatchManager batchManager = new BatchManager(programInput);
+                if (!batchManager.startBatch()) {
+                    System.exit(-1);
+                }
+                return;
+            }
             DownloadManager downloadManager = new DownloadManager(programInput);
             downloadManager.startDownload();
         }
@@ -21,6 +33,23 @@ public class IdcDm {
      * Show a 'usage: ..." message in case of invalid number of arguments.
      */
     private static void handleWrongArgumentsUsage() {
-        ProgramPrinter.printMessage("usage:\n\tjava IdcDm URL | URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]");
+        ProgramPrinter.printMessage("usage:\n\tjava IdcDm URL | URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS] [OPTIONS]\n" +
+                "\tjava IdcDm [MAX-CONCURRENT-CONNECTIONS] --batch JOBS-FILE [--parallel-files N] [OPTIONS]\n" +
+                "jobs file lines:\n" +
+                "\tURL[,URL...] | URL-LIST-FILE [DESTINATION]\n" +
+                "options:\n" +
+                "\t--write-mode buffered | streaming | mapped\n" +
+                "\t--max-buffer-mb MEGABYTES\n" +
+                "\t--writer-threads N\n" +
+                "\t--threads platform | virtual\n" +
+                "\t--transport http1 | http2\n" +
+                "\t--connections-per-server N\n" +
+                "\t--max-rate BYTES-PER-SECOND[K|M|G]\n" +
+                "\t--max-rate-per-server BYTES-PER-SECOND[K|M|G]\n" +
+                "\t--hash sha256 | sha512 | crc32c\n" +
+                "\t--expected-hash HEX-DIGEST\n" +
+                "\t--hash-file SHA256SUMS-FILE\n" +
+                "\t--verify\n" +
+                "\t--metrics-file PROMETHEUS-TEXT-FILE");
     }
 }
@@ -0,0 +1,135 @@
+/**
+ * A range being downloaded by a getter. The getter claims the range's chunks one at a time as it
+ * reads them, so the chunks it did not reach yet can be taken away by a split: the range is truncated,
+ * and its unread remainder is handed out to an idle getter.
+ * When the request fails, the range is abandoned and its unread remainder is retried.
+ */
+public class InFlightRange {
+
+    private ChunkRange range;
+    private int nextChunkIndex; // the next chunk to be claimed by the reading getter
+    private int endChunkIndex; // exclusive, lowered when the range is split
+    private int readChunkIndex; // the first chunk not completely read yet
+    private int attempt; // the number of failed requests for the range's chunks so far
+    private MirrorStats failedMirror; // the mirror of the last failed request, or null
+    private MirrorStats mirror; // the mirror the range is downloaded from
+    private long startTime = System.nanoTime();
+    private long bytesRead = 0;
+
+    /**
+     * @param range - the range requested by the getter.
+     */
+    public InFlightRange(ChunkRange range) {
+        this(range, 0, null);
+    }
+
+    /**
+     * Creates a range retried after failed requests.
+     * @param range - the range requested by the getter.
+     * @param attempt - the number of failed requests for the range's chunks so far.
+     * @param failedMirror - the mirror of the last failed request, or null.
+     */
+    public InFlightRange(ChunkRange range, int attempt, MirrorStats failedMirror) {
+        this.range = range;
+        this.nextChunkIndex = range.getChunkIndex();
+        this.endChunkIndex = range.getLastChunkIndex() + 1;
+        this.readChunkIndex = nextChunkIndex;
+        this.attempt = attempt;
+        this.failedMirror = failedMirror;
+    }
+
+    /**
+     * Claims the next chunk of the range for reading.
+     * @returns the claimed chunk index, or -1 if the (possibly truncated) range has no chunk left.
+     */
+    public synchronized int claimNextChunk() {
+        return (nextChunkIndex < endChunkIndex) ? nextChunkIndex++ : -1;
+    }
+
+    /**
+     * @returns true if and only if at least a single chunk is left unclaimed.
+     */
+    public synchronized boolean hasUnclaimedChunks() {
+        return nextChunkIndex < endChunkIndex;
+    }
+
+    /**
+     * @returns true if and only if at least two chunks are left unclaimed.
+     */
+    public synchronized boolean isSplittable() {
+        return endChunkIndex - nextChunkIndex >= 2;
+    }
+
+    /**
+     * Truncates the range at the middle of its unclaimed chunks.
+     * @returns the range of the chunks taken away, or null if less than two chunks are left unclaimed.
+     */
+    public synchronized ChunkRange split() {
+        int unclaimedChunks = endChunkIndex - nextChunkIndex;
+        if (unclaimedChunks < 2) {
+            return null;
+        }
+        int splitIndex = nextChunkIndex + unclaimedChunks / 2;
+        ChunkRange remainder = range.subRange(splitIndex, endChunkIndex - splitIndex);
+        endChunkIndex = splitIndex;
+        return remainder;
+    }
+
+    /**
+     * Registers the last claimed chunk as completely read, to estimate the range's transfer rate.
+     * @param bytes - the number of bytes read.
+     */
+    public synchronized void completeChunk(long bytes) {
+        bytesRead += bytes;
+        readChunkIndex = nextChunkIndex;
+    }
+
+    /**
+     * Truncates the range after its last completely read chunk, so it can no longer be split.
+     * @returns the range of the chunks not completely read, or null if every chunk was read.
+     */
+    public synchronized ChunkRange abandon() {
+        int unreadChunks = endChunkIndex - readChunkIndex;
+        nextChunkIndex = endChunkIndex = readChunkIndex;
+        return (unreadChunks > 0) ? range.subRange(readChunkIndex, unreadChunks) : null;
+    }
+
+    /**
+     * @returns the estimated time (in ns) left to read the unclaimed chunks at the range's current
+     * transfer rate, or Long.MAX_VALUE if no byte was read yet.
+     */
+    public synchronized long estimatedRemainingTime() {
+        if (bytesRead == 0) {
+            return Long.MAX_VALUE;
+        }
+        double bytesPerNano = (double)bytesRead / Math.max(1, System.nanoTime() - startTime);
+        long unclaimedBytes = (long)(endChunkIndex - nextChunkIndex) * Chunk.CHUNK_SIZE;
+        return (long)(unclaimedBytes / bytesPerNano);
+    }
+
+    /* GETTERS & SETTERS */
+
+    public ChunkRange getRange() {
+        return range;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public MirrorStats getFailedMirror() {
+        return failedMirror;
+    }
+
+    public MirrorStats getMirror() {
+        return mirror;
+    }
+
+    public void setMirror(MirrorStats mirror) {
+        this.mirror = mirror;
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, over fixed exponential buckets.
+ * Each bucket is a striped counter, so recording from many threads at once does not contend on a
+ * single memory location; reading a consistent snapshot is not needed for monitoring.
+ */
+public class LatencyHistogram {
+
+    private static final double[] BUCKET_BOUNDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+            1, 2.5, 5, 10, 30}; // upper bounds of the buckets, in seconds
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1]; // the last one is unbounded
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a measured duration in its bucket.
+     * @param nanos - the duration, in ns.
+     */
+    public void record(long nanos) {
+        double seconds = nanos / 1e9;
+        int i = 0;
+        while (i < BUCKET_BOUNDS.length && seconds > BUCKET_BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        totalNanos.add(nanos);
+    }
+
+    /**
+     * @param fraction - the fraction of the recorded durations, between 0 and 1 (e.g. 0.99).
+     * @returns the upper bound (in ms) of the bucket holding the given fraction of the recorded durations,
+     * or 0 if none was recorded. Durations past the last bound are reported as that bound.
+     */
+    public double getPercentileMillis(double fraction) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(fraction * count);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative += buckets[i].sum();
+            if (cumulative >= rank) {
+                return BUCKET_BOUNDS[i] * 1000;
+            }
+        }
+        return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] * 1000;
+    }
+
+    /**
+     * @returns the number of recorded durations.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public static double[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * @param index - the bucket index, {@getBucketBounds().length} for the unbounded bucket.
+     * @returns the number of durations recorded in the bucket (not cumulative).
+     */
+    public long getBucketCount(int index) {
+        return buckets[index].sum();
+    }
+
+    public double getTotalSeconds() {
+        return totalNanos.sum() / (double)TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The destination file in mapped mode: the preallocated file is mapped in windows of {@WINDOW_CHUNKS}
+ * chunks, and the getters copy the network data straight into the mapped window of each chunk, without
+ * a chunk buffer, a write call or a writer thread.
+ * The windows are mapped on first use. Windows are whole chunks, so a chunk never spans two windows.
+ * The windows written since the last metadata commit are forced by the commit, before the chunks are
+ * recorded as done, so the durability of the data follows the commits as in the other modes. A window
+ * whose chunks are all written is dropped once forced, so the mapped part of the file stays small even
+ * when the file is larger than the memory.
+ * Thread safe: the getters write disjoint chunks concurrently.
+ */
+public class MappedDestination {
+
+    public static final int WINDOW_CHUNKS = 512; // chunks per mapped window (~65 MB)
+    private static final long WINDOW_SIZE = (long)WINDOW_CHUNKS * Chunk.CHUNK_SIZE;
+
+    private FileChannel channel;
+    private long fileSize;
+    private AtomicReferenceArray<MappedByteBuffer> windows;
+    private AtomicIntegerArray unwrittenChunks; // chunks of each window not written yet
+    private Set<Integer> dirtyWindows = ConcurrentHashMap.newKeySet(); // windows written since the last force
+
+    /**
+     * Opens the destination file, allocated to its full size beforehand (see {@FilePreallocator}).
+     * @param destinationFilePath - the path of the output file.
+     * @param fileSize - the total file size in bytes.
+     * @param chunkManager - the chunk state table, telling the chunks written by a previous run.
+     * @throws IOException if the file could not be opened.
+     */
+    public MappedDestination(String destinationFilePath, long fileSize, ChunkManager chunkManager) throws IOException {
+        this.channel = FileChannel.open(Paths.get(destinationFilePath), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileSize = fileSize;
+        int windowCount = (int)((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE);
+        this.windows = new AtomicReferenceArray<>(windowCount);
+        this.unwrittenChunks = new AtomicIntegerArray(windowCount);
+        for (int i = 0; i < chunkManager.getChunksCount(); i++) {
+            if (chunkManager.getChunkState(i) != ChunkManager.WRITTEN) {
+                unwrittenChunks.incrementAndGet(i / WINDOW_CHUNKS);
+            }
+        }
+    }
+
+    /**
+     * Copies a piece of a chunk's data into the file, through the chunk's mapped window.
+     * @param data - the data; its position is advanced past the written bytes.
+     * @param position - the file position of the data, within a single chunk.
+     * @throws IOException if the window could not be mapped.
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        int windowIndex = (int)(position / WINDOW_SIZE);
+        ByteBuffer window = getWindow(windowIndex).duplicate();
+        window.position((int)(position - windowIndex * WINDOW_SIZE));
+        window.put(data);
+        dirtyWindows.add(windowIndex);
+    }
+
+    /**
+     * Counts a chunk of the file as written, so its window can be dropped once all its chunks are forced.
+     * @param chunkIndex - the written chunk.
+     */
+    public void markWritten(int chunkIndex) {
+        unwrittenChunks.decrementAndGet(chunkIndex / WINDOW_CHUNKS);
+    }
+
+    /**
+     * @returns the mapped window of the given index, mapping it first if needed.
+     */
+    private MappedByteBuffer getWindow(int windowIndex) throws IOException {
+        MappedByteBuffer window = windows.get(windowIndex);
+        if (window == null) {
+            long start = windowIndex * WINDOW_SIZE;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, fileSize - start));
+            if (!windows.compareAndSet(windowIndex, null, window)) {
+                window = windows.get(windowIndex); // mapped concurrently by another getter
+                if (window == null) {
+                    return getWindow(windowIndex);
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Forces the windows written since the last call to the storage device. The windows whose chunks are all
+     * written are dropped after, and unmapped by the garbage collector.
+     * Called by the metadata group commit, before the committed chunks are recorded as done.
+     */
+    public void force() {
+        for (Integer windowIndex : dirtyWindows) {
+            dirtyWindows.remove(windowIndex);
+            MappedByteBuffer window = windows.get(windowIndex);
+            if (window == null) {
+                continue;
+            }
+            window.force();
+            if (unwrittenChunks.get(windowIndex) <= 0) {
+                windows.compareAndSet(windowIndex, window, null);
+            }
+        }
+    }
+
+    /**
+     * Forces the windows still written, then closes the file.
+     */
+    public void close() {
+        force();
+        for (int i = 0; i < windows.length(); i++) {
+            windows.set(i, null);
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to properly close the mapped destination file.", e);
+        }
+    }
+
+    /* GETTERS & SETTERS */
+
+    /**
+     * @returns the channel of the file, for reading back the written chunks (e.g. to hash them).
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+}
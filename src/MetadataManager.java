@@ -1,48 +1,100 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MetadataManager {
 
     // metadata files suffices
     private static final String SUFFIX = ".tmp";
-    private static final String COPY_SUFFIX = ".copy.tmp";
+    private static final String JOURNAL_SUFFIX = ".journal.tmp";
+
+    private static final long COMMIT_INTERVAL = 1000; // max time (in ms) completed chunks wait for a group commit
+    private static final long COMMIT_BYTES_THRESHOLD = 32 * 1024 * 1024; // completed bytes triggering a group commit
+    private static final int MIN_COMPACTION_RECORDS = 4096; // min journal records before compacting into the bitmap
+    private static final int COMPACTION_TABLE_FRACTION = 8; // compacting once the journal holds 1/8 of the table
 
     private String sourceFileName;
     private long sourceFileTotalSize;
+    private String sourceFileValidator;
     private File metadataFile = null;
+    private MinifiedChunkTable chunkTable;
     private boolean firstRun = false;
+    private ProgressJournal journal;
+    private FileChannel dataChannel;
+    private MappedDestination mappedDestination; // forced instead of the data channel, in mapped mode
+    private List<Chunk> pendingChunks = new ArrayList<>();
+    private long pendingBytes = 0;
+    private long lastCommitTime = System.currentTimeMillis();
+    private LatencyHistogram commitHistogram = new LatencyHistogram(); // the duration of the group commits
 
     /**
      * Creates an object to handle saving and loading of the metadata persistent files.
-     * The constructor opens the metadata file if already exists, or creates one if necessary.
+     * The constructor maps the metadata file if it already exists and describes the same source file,
+     * or creates one if necessary, and opens the progress journal.
      * @param sourceFileName - the name of the source file.
      * @param sourceFileTotalSize - the size of the source file in bytes.
+     * @param sourceFileValidator - the source file ETag or Last-Modified value, or null if unknown.
      */
-    public MetadataManager(String sourceFileName, long sourceFileTotalSize) {
+    public MetadataManager(String sourceFileName, long sourceFileTotalSize, String sourceFileValidator) {
         this.sourceFileName = sourceFileName;
         this.sourceFileTotalSize = sourceFileTotalSize;
+        this.sourceFileValidator = sourceFileValidator;
+        this.metadataFile = new File(this.sourceFileName + SUFFIX);
         if (metadataFileExists()) {
-            this.metadataFile = new File(this.sourceFileName + SUFFIX);
+            openMetadataFile();
         }
-        else {
+        if (chunkTable == null) {
             createInitialMetadataFile();
         }
+        openJournal();
+    }
+
+    /**
+     * Maps the existing metadata file. If it was written by another version of the program or for
+     * another source file, the previous progress is discarded.
+     */
+    private void openMetadataFile() {
+        try {
+            chunkTable = MinifiedChunkTable.open(metadataFile, sourceFileTotalSize, sourceFileValidator);
+            if (chunkTable == null) {
+                ProgramPrinter.printMessage("The source file or the metadata format changed, restarting download...\n");
+            }
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Failed to read from the metadata file.", e);
+        }
     }
 
     /**
      * Creates the initial file on the first run of the download manager program.
      */
     public void createInitialMetadataFile() {
-        File file = new File(sourceFileName + SUFFIX);
         try {
-            file.createNewFile();
+            chunkTable = MinifiedChunkTable.create(metadataFile, sourceFileTotalSize, sourceFileValidator);
         }
         catch (IOException e) {
             ProgramPrinter.printError("Failed to create metadata temp file." , e);
         }
-        metadataFile = file;
         firstRun = true;
     }
 
+    /**
+     * Opens the progress journal. On the first run, records left by an unrelated previous run are discarded.
+     */
+    private void openJournal() {
+        try {
+            journal = new ProgressJournal(new File(sourceFileName + JOURNAL_SUFFIX).toPath());
+            if (firstRun) {
+                journal.truncate();
+            }
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Failed to open the progress journal file.", e);
+        }
+    }
+
     /**
      * @returns true if and only if the metadata file already exists, false otherwise.
      */
@@ -54,82 +106,122 @@ public class MetadataManager {
      * Clears the temporary metadata files after a successful download.
      */
     public void clearFiles() {
+        close();
+        new File(sourceFileName + JOURNAL_SUFFIX).delete();
         metadataFile.delete();
     }
 
     /**
-     * Saves the serialized ChunkManager object to the metadata file. The serialized object is first
-     * written to a second temporary file which is then atomically renamed to overwrite the
-     * original metadata file.
-     * @param chunkManager
+     * Closes the metadata files, keeping them for the next run.
      */
-    public void save(ChunkManager chunkManager) {
-        File metadataCopyFile = new File(sourceFileName + COPY_SUFFIX);
-        serializeMetadata(chunkManager, metadataCopyFile);
-        metadataCopyFile.renameTo(metadataFile);
+    public void close() {
+        journal.close();
+        chunkTable.close();
     }
 
     /**
-     * Loads the serialized object from the metadata file, deserializes it
-     * and creates a ChunkManager object from it.
-     * @returns the restored ChunkManager object.
+     * Registers a chunk written to the destination file, to be recorded by the next group commit.
+     * @param c - the written Chunk.
      */
-    public ChunkManager load() {
-        ChunkManager loadedChunkManager = deserializeMetadata();
-        return loadedChunkManager;
+    public synchronized void markCompleted(Chunk c) {
+        pendingChunks.add(c);
+        pendingBytes += c.getSize();
     }
 
     /**
-     * Serializes the given ChunkManager object and writes it to the given <metadataCopyFile>.
-     * @param chunkManager - the object to serialize.
-     * @param metadataCopyFile - the file to write the serialized object to.
+     * Commits the pending chunks if enough time passed since the last commit, or enough bytes are pending.
      */
-    private void serializeMetadata(ChunkManager chunkManager, File metadataCopyFile) {
-        try {
-            FileOutputStream file = new FileOutputStream(metadataCopyFile);
-            ObjectOutputStream out = new ObjectOutputStream(file);
-            MinifiedChunkTable m = new MinifiedChunkTable(chunkManager);
-            out.writeObject(m);
-            out.flush();
-            out.close();
-            file.close();
+    public synchronized void commitIfDue() {
+        boolean intervalElapsed = System.currentTimeMillis() - lastCommitTime >= COMMIT_INTERVAL;
+        if (pendingBytes >= COMMIT_BYTES_THRESHOLD || (intervalElapsed && !pendingChunks.isEmpty())) {
+            commit();
+        }
+    }
+
+    /**
+     * Group commit of the pending chunks: the destination file data is first forced to the storage
+     * device (only the windows written since the last commit, in mapped mode), and only then the chunks
+     * are appended to the journal and flipped in the mapped bitmap, so a chunk is never recorded as done
+     * before its data is durable.
+     * Compacts the journal once it holds enough records.
+     */
+    public synchronized void commit() {
+        lastCommitTime = System.currentTimeMillis();
+        if (pendingChunks.isEmpty()) {
+            return;
         }
-        catch (FileNotFoundException e) {
-            ProgramPrinter.printError("Unable to create a temporary file: invalid path.", e);
+        long commitStart = System.nanoTime();
+        try {
+            if (mappedDestination != null) {
+                mappedDestination.force();
+            }
+            else if (dataChannel != null) {
+                dataChannel.force(false);
+            }
+            journal.append(pendingChunks);
+            for (Chunk c : pendingChunks) {
+                c.setStatus(true);
+                chunkTable.markCompleted(c.getID(), c.getChecksum());
+            }
+            pendingChunks.clear();
+            pendingBytes = 0;
+            int compactionThreshold = Math.max(MIN_COMPACTION_RECORDS,
+                    chunkTable.getChunkCount() / COMPACTION_TABLE_FRACTION);
+            if (journal.getRecordCount() >= compactionThreshold) {
+                compact();
+            }
         }
         catch (IOException e) {
-            ProgramPrinter.printError("Failed to write the serialized object to the temporary file.", e);
+            ProgramPrinter.printError("Failed to commit the download progress to the journal.", e);
         }
+        commitHistogram.record(System.nanoTime() - commitStart);
+    }
+
+    /**
+     * Forces the bitmap, in which the journaled chunks were already flipped, then discards the journal
+     * records it covers. A crash between the two steps only leaves records which are replayed idempotently.
+     * @throws IOException if the journal could not be truncated.
+     */
+    private void compact() throws IOException {
+        chunkTable.force();
+        journal.truncate();
     }
 
     /**
-     * Deserializes the serialized object from the metadata file. If the metadata file is empty,
-     * the function creates a fresh instance of a ChunkManager object.
-     * @returns a ChunkManager object.
+     * Checks the data of the completed chunks in the destination file against their recorded checksums,
+     * and marks the failing chunks as pending again, so only them are downloaded again.
+     * The cleared bits are compacted at once, so a crash does not bring the failing chunks back.
+     * @param destinationPath - the destination file path.
+     * @returns the number of chunks which failed the check, or -1 if the check could not run.
      */
-    private ChunkManager deserializeMetadata() {
-        ChunkManager result = null;
+    public synchronized int verify(Path destinationPath) {
         try {
-            FileInputStream file = new FileInputStream(sourceFileName + SUFFIX);
-            ObjectInputStream in = new ObjectInputStream(file);
-            MinifiedChunkTable m = (MinifiedChunkTable) in.readObject();
-            in.close();
-            file.close();
-            result = new ChunkManager(m);
+            journal.replay(chunkTable);
+            List<Integer> failedChunks = new ChunkVerifier(chunkTable, sourceFileTotalSize).verify(destinationPath);
+            for (int chunkID : failedChunks) {
+                chunkTable.markPending(chunkID);
+            }
+            compact();
+            return failedChunks.size();
         }
-        catch (FileNotFoundException e) {
-            ProgramPrinter.printError("Unable to find the metadata file.", e);
+        catch (IOException e) {
+            ProgramPrinter.printError("Failed to verify the downloaded data.", e);
+            return -1;
         }
-        catch (EOFException e) {
-            result = new ChunkManager(sourceFileTotalSize);
+    }
+
+    /**
+     * Replays the journal records into the mapped bitmap, then creates a ChunkManager object from it.
+     * @returns the restored ChunkManager object.
+     */
+    public ChunkManager load() {
+        try {
+            journal.replay(chunkTable);
         }
         catch (IOException e) {
-            ProgramPrinter.printError("Failed to read from the metadata file.", e);
-        }
-        catch (ClassNotFoundException e) {
-            ProgramPrinter.printError("Failed to read from the metadata file.", e);
+            ProgramPrinter.printError("Failed to read from the progress journal file.", e);
         }
-        return result;
+        return new ChunkManager(chunkTable);
     }
 
     /* GETTERS & SETTERS */
@@ -137,4 +229,16 @@ public class MetadataManager {
     public boolean isFirstRun() {
         return firstRun;
     }
+
+    public void setDataChannel(FileChannel dataChannel) {
+        this.dataChannel = dataChannel;
+    }
+
+    public void setMappedDestination(MappedDestination mappedDestination) {
+        this.mappedDestination = mappedDestination;
+    }
+
+    public LatencyHistogram getCommitHistogram() {
+        return commitHistogram;
+    }
 }
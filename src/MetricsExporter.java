@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically dumps the metrics of the running downloads to a file, in the Prometheus text format
+ * (e.g. for the node exporter's textfile collector). Each dump replaces the file atomically, so a
+ * reader never sees a partial file.
+ */
+public class MetricsExporter {
+
+    private static final long EXPORT_INTERVAL = 1000; // time (in ms) between two dumps
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private Path metricsFile;
+    private List<DownloadMetrics> downloads = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService timer;
+    private boolean failureReported = false;
+
+    /**
+     * Starts dumping the metrics to the given file, every {@EXPORT_INTERVAL} ms.
+     * @param metricsFilePath - the path of the metrics file.
+     */
+    public MetricsExporter(String metricsFilePath) {
+        this.metricsFile = Paths.get(metricsFilePath).toAbsolutePath();
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::export, EXPORT_INTERVAL, EXPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a running download to the dumps.
+     * @param metrics - the download's metrics.
+     */
+    public void add(DownloadMetrics metrics) {
+        downloads.add(metrics);
+    }
+
+    /**
+     * Dumps the final metrics of a finished download, then removes it from the next dumps.
+     * @param metrics - the download's metrics.
+     */
+    public void remove(DownloadMetrics metrics) {
+        export();
+        downloads.remove(metrics);
+    }
+
+    /**
+     * Writes the metrics of all the running downloads to a temporary file, then moves it over the metrics file.
+     * A failure is reported once, and does not affect the downloads.
+     */
+    public synchronized void export() {
+        PrometheusText text = new PrometheusText();
+        for (DownloadMetrics metrics : downloads) {
+            metrics.collect(text);
+        }
+        Path tempFile = metricsFile.resolveSibling(metricsFile.getFileName() + TEMP_SUFFIX);
+        try {
+            Files.write(tempFile, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, metricsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            if (!failureReported) {
+                failureReported = true;
+                ProgramPrinter.printMessage(String.format("Unable to write the metrics file:\n%s",
+                        e.getLocalizedMessage()));
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic dumps. The file keeps the last dump, holding the final metrics of the last
+     * finished download.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -1,36 +1,207 @@
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
  * An minified representation of the ChunkManager object.
- * A MinifiedChunkTable is practically a bitmap representing the completed chunks of the source file.
+ * A MinifiedChunkTable is practically a bitmap representing the completed chunks of the source file,
+ * along with a manifest of the completed chunks' CRC-32C checksums, used to verify the destination file
+ * data on resume.
+ * The bitmap is kept in a versioned binary file, memory-mapped so that marking a chunk as completed
+ * is a single bit flip (and checksum write) in place:
+ *
+ *  offset  size  field
+ *  0       4     magic number ("IDCM")
+ *  4       4     format version
+ *  8       8     source file size in bytes
+ *  16      4     chunk size in bytes
+ *  20      4     chunk count
+ *  24      8     validator hash (of the source ETag / Last-Modified, 0 if unknown)
+ *  32      32    reserved
+ *  64      ...   packed bitmap words (8 bytes each), bit i of word w stands for chunk 64 * w + i
+ *  ...     ...   chunk checksums manifest (4 bytes each, by chunk ID), meaningful for completed chunks only
  */
-public class MinifiedChunkTable implements Serializable {
+public class MinifiedChunkTable {
 
-    private boolean[] chunks;
+    private static final int MAGIC = 0x4944434D; // "IDCM"
+    private static final int VERSION = 2; // version 2 added the checksums manifest
+    private static final int HEADER_SIZE = 64;
+    private static final int FILE_SIZE_OFFSET = 8;
+    private static final int CHUNK_SIZE_OFFSET = 16;
+    private static final int CHUNK_COUNT_OFFSET = 20;
+    private static final int VALIDATOR_OFFSET = 24;
+
+    private FileChannel channel;
+    private MappedByteBuffer bitmap;
+    private int chunkCount;
+    private int checksumsOffset;
+
+    /**
+     * Maps the given metadata file, which must be at least <mappedSize> bytes long.
+     */
+    private MinifiedChunkTable(File metadataFile, long mappedSize) throws IOException {
+        this.channel = FileChannel.open(metadataFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.bitmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize);
+    }
+
+    /**
+     * Creates a new metadata file with an empty bitmap for the given source file, and maps it.
+     * @param metadataFile - the metadata file to (re)create.
+     * @param fileSize - the source file size in bytes.
+     * @param validator - the source file validator (ETag or Last-Modified), or null if unknown.
+     * @returns the mapped table, with no chunk completed.
+     * @throws IOException if the metadata file could not be created.
+     */
+    public static MinifiedChunkTable create(File metadataFile, long fileSize, String validator) throws IOException {
+        int chunkCount = (int)Math.ceil((double)fileSize / Chunk.CHUNK_SIZE);
+        FileChannel.open(metadataFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+        MinifiedChunkTable table = new MinifiedChunkTable(metadataFile, mappedSize(chunkCount));
+        table.bitmap.putInt(0, MAGIC);
+        table.bitmap.putInt(4, VERSION);
+        table.bitmap.putLong(FILE_SIZE_OFFSET, fileSize);
+        table.bitmap.putInt(CHUNK_SIZE_OFFSET, Chunk.CHUNK_SIZE);
+        table.bitmap.putInt(CHUNK_COUNT_OFFSET, chunkCount);
+        table.bitmap.putLong(VALIDATOR_OFFSET, hashValidator(validator));
+        table.setChunkCount(chunkCount);
+        table.force();
+        return table;
+    }
+
+    /**
+     * Maps an existing metadata file, if it was written for the given source file.
+     * @param metadataFile - the existing metadata file.
+     * @param fileSize - the source file size in bytes.
+     * @param validator - the source file validator (ETag or Last-Modified), or null if unknown.
+     * @returns the mapped table, or null if the file has another format or describes another source file.
+     * @throws IOException if the metadata file could not be read.
+     */
+    public static MinifiedChunkTable open(File metadataFile, long fileSize, String validator) throws IOException {
+        int chunkCount = (int)Math.ceil((double)fileSize / Chunk.CHUNK_SIZE);
+        if (metadataFile.length() != mappedSize(chunkCount)) {
+            return null;
+        }
+        MinifiedChunkTable table = new MinifiedChunkTable(metadataFile, mappedSize(chunkCount));
+        MappedByteBuffer header = table.bitmap;
+        boolean matches = header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                && header.getLong(FILE_SIZE_OFFSET) == fileSize
+                && header.getInt(CHUNK_SIZE_OFFSET) == Chunk.CHUNK_SIZE
+                && header.getInt(CHUNK_COUNT_OFFSET) == chunkCount
+                && header.getLong(VALIDATOR_OFFSET) == hashValidator(validator);
+        if (!matches) {
+            table.close();
+            return null;
+        }
+        table.setChunkCount(chunkCount);
+        return table;
+    }
+
+    /**
+     * Sets the chunk count of the mapped table, which also locates the checksums manifest.
+     */
+    private void setChunkCount(int chunkCount) {
+        this.chunkCount = chunkCount;
+        this.checksumsOffset = HEADER_SIZE + wordCount(chunkCount) * Long.BYTES;
+    }
+
+    /**
+     * @returns the metadata file size needed for a bitmap of <chunkCount> bits.
+     */
+    private static long mappedSize(int chunkCount) {
+        return HEADER_SIZE + (long)wordCount(chunkCount) * Long.BYTES + (long)chunkCount * Integer.BYTES;
+    }
+
+    private static int wordCount(int chunkCount) {
+        return (chunkCount + Long.SIZE - 1) / Long.SIZE;
+    }
 
     /**
-     * Creates a minified representation for the given ChunkManager object.
-     * @param chunkManager
+     * Hashes the given validator string with 64 bits FNV-1a.
+     * @param validator - the validator string, or null if unknown.
+     * @returns the validator hash, or 0 for an unknown validator.
      */
-    public MinifiedChunkTable(ChunkManager chunkManager) {
-        this.chunks = new boolean[chunkManager.getChunksCount()];
-        for (int i = 0; i < chunkManager.getChunksCount(); i++) {
-            Chunk currentChunk = chunkManager.getChunkAt(i);
-            chunks[i] = (currentChunk != null) ? currentChunk.isCompleted() : false;
+    private static long hashValidator(String validator) {
+        if (validator == null || validator.isEmpty()) return 0;
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : validator.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Records the checksum of the given chunk, and flips its bit in place.
+     * Not thread safe, callers must synchronize.
+     * @param chunkID - the completed chunk ID.
+     * @param checksum - the CRC-32C checksum of the chunk's data.
+     */
+    public void markCompleted(int chunkID, int checksum) {
+        bitmap.putInt(checksumsOffset + chunkID * Integer.BYTES, checksum);
+        int offset = HEADER_SIZE + (chunkID / Long.SIZE) * Long.BYTES;
+        bitmap.putLong(offset, bitmap.getLong(offset) | (1L << (chunkID % Long.SIZE)));
+    }
+
+    /**
+     * Clears the bit of the given chunk in place, so the chunk is downloaded again.
+     * Not thread safe, callers must synchronize.
+     * @param chunkID - the chunk ID.
+     */
+    public void markPending(int chunkID) {
+        int offset = HEADER_SIZE + (chunkID / Long.SIZE) * Long.BYTES;
+        bitmap.putLong(offset, bitmap.getLong(offset) & ~(1L << (chunkID % Long.SIZE)));
+    }
+
+    /**
+     * Forces the bitmap changes to the storage device.
+     */
+    public void force() {
+        bitmap.force();
+    }
+
+    /**
+     * Closes the metadata file. The mapping itself is released once it is garbage collected.
+     */
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to properly close the metadata file.", e);
         }
     }
 
     /* GETTERS & SETTERS */
 
     public int getChunkCount() {
-        return this.chunks.length;
+        return this.chunkCount;
     }
 
-    public boolean[] getTable() {
-        return chunks;
+    /**
+     * @returns a read-only view of the packed bitmap words, for bulk loading. The view ends with the last
+     * bitmap word, before the checksums manifest.
+     */
+    public LongBuffer getWords() {
+        ByteBuffer words = bitmap.duplicate();
+        words.position(HEADER_SIZE);
+        words.limit(checksumsOffset);
+        return words.slice().asLongBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * @returns the recorded CRC-32C checksum of the given completed chunk.
+     */
+    public int getChecksum(int chunkID) {
+        return bitmap.getInt(checksumsOffset + chunkID * Integer.BYTES);
     }
 
     public boolean getElementAt(int i) {
-        return chunks[i];
+        long word = bitmap.getLong(HEADER_SIZE + (i / Long.SIZE) * Long.BYTES);
+        return (word & (1L << (i % Long.SIZE))) != 0;
     }
 }
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses the mirror of each range request according to the mirrors' measured performance.
+ * A mirror is chosen with a probability proportional to its score (the expected rate of a connection
+ * to it, discounted by its error rate), so faster mirrors get more ranges and, as getters pick a mirror
+ * per range, more concurrent connections. Mirrors not measured yet are scored as the best known
+ * mirror, and a small fraction of the requests probes a uniformly chosen mirror, so slow mirrors
+ * keep being measured and can win traffic back.
+ * Quarantined mirrors (see {@MirrorStats}) are skipped. When every mirror is quarantined the getters
+ * wait for the first quarantine to end, and the download is given up once all the mirrors stayed
+ * down for longer than the deadline.
+ */
+public class MirrorScheduler {
+
+    private static final double PROBE_PROBABILITY = 0.05; // fraction of the requests sent to a random mirror
+    private static final long ALL_MIRRORS_DOWN_DEADLINE = 120000; // max time (in ms) all the mirrors may be down
+    private static final long MAX_WAIT_TIME = 1000; // max time (in ms) between checks of the quarantined mirrors
+
+    private List<MirrorStats> mirrors;
+    private long allDownSince = 0; // the time every mirror was first seen quarantined, 0 while any is available
+
+    /**
+     * @param serverList - the mirrors' URLs.
+     * @param maxBytesPerSecond - the capped rate of each mirror, or {@TokenBucket.UNLIMITED}.
+     */
+    public MirrorScheduler(List<String> serverList, long maxBytesPerSecond) {
+        this.mirrors = new ArrayList<>(serverList.size());
+        for (String address : serverList) {
+            mirrors.add(new MirrorStats(address, maxBytesPerSecond));
+        }
+    }
+
+    /**
+     * Chooses the mirror for the next range request, and counts a connection to it
+     * until {@release} is called. Blocks while every mirror is quarantined.
+     * @param avoidedMirror - a mirror to choose only if no other mirror is available
+     *                        (the mirror a retried range failed on), or null.
+     * @returns the chosen mirror, or null if all the mirrors are down for longer than the deadline.
+     * @throws InterruptedException if interrupted while waiting for a mirror.
+     */
+    public MirrorStats acquireMirror(MirrorStats avoidedMirror) throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            List<MirrorStats> candidates = availableMirrors(now, avoidedMirror);
+            if (candidates.isEmpty() && avoidedMirror != null) {
+                candidates = availableMirrors(now, null);
+            }
+            if (!candidates.isEmpty()) {
+                MirrorStats chosen = chooseMirror(candidates);
+                if (chosen.tryAddConnection(now)) {
+                    synchronized (this) {
+                        allDownSince = 0;
+                    }
+                    return chosen;
+                }
+                continue; // another getter took the probe request of a half-open mirror
+            }
+            synchronized (this) {
+                if (allDownSince == 0) {
+                    allDownSince = now;
+                }
+                else if (now - allDownSince >= ALL_MIRRORS_DOWN_DEADLINE) {
+                    return null;
+                }
+            }
+            Thread.sleep(MAX_WAIT_TIME);
+        }
+    }
+
+    /**
+     * Ends the range request sent to the given mirror.
+     * @param mirror - a mirror returned by {@acquireMirror}.
+     */
+    public void release(MirrorStats mirror) {
+        mirror.removeConnection();
+    }
+
+    /**
+     * @returns the mirrors a request may be sent to, except for the given mirror.
+     */
+    private List<MirrorStats> availableMirrors(long now, MirrorStats excludedMirror) {
+        List<MirrorStats> available = new ArrayList<>(mirrors.size());
+        for (MirrorStats mirror : mirrors) {
+            if (mirror != excludedMirror && mirror.isAvailable(now)) {
+                available.add(mirror);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Weighted random choice of a mirror out of the given candidates, by score.
+     */
+    private MirrorStats chooseMirror(List<MirrorStats> candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (candidates.size() == 1 || random.nextDouble() < PROBE_PROBABILITY) {
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+        double bestScore = 0;
+        for (MirrorStats mirror : candidates) {
+            bestScore = Math.max(bestScore, mirror.getScore());
+        }
+        double[] weights = new double[candidates.size()];
+        double totalWeight = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            MirrorStats mirror = candidates.get(i);
+            weights[i] = mirror.isMeasured() ? mirror.getScore() : Math.max(bestScore, 1);
+            totalWeight += weights[i];
+        }
+        if (totalWeight <= 0) {
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+        double target = random.nextDouble() * totalWeight;
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target < 0) return candidates.get(i);
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /* GETTERS & SETTERS */
+
+    public List<MirrorStats> getMirrors() {
+        return mirrors;
+    }
+}
@@ -0,0 +1,222 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measured performance of a single mirror: exponentially weighted moving averages of its
+ * effective transfer rate, time to first byte and error rate, along with its active connections count.
+ * Updated once per range request, so a simple monitor lock is enough.
+ * Also acts as the mirror's circuit breaker: after repeated consecutive failures the mirror is
+ * quarantined for a while, then a single probe request is let through (half-open state). A successful
+ * probe closes the breaker, a failed one quarantines the mirror again, for twice as long.
+ * The data read from the mirror by all the getters goes through the mirror's own token bucket, capping
+ * the mirror's rate if the user asked to.
+ * The bytes received and the latency histograms are striped counters, updated without taking the lock,
+ * and read over JMX.
+ */
+public class MirrorStats implements MirrorStatsMBean {
+
+    private static final double SMOOTHING_FACTOR = 0.2; // weight of the latest sample in the moving averages
+    private static final int FAILURE_THRESHOLD = 3; // consecutive failures quarantining the mirror
+    private static final long BASE_QUARANTINE_TIME = 5000; // first quarantine duration (in ms)
+    private static final long MAX_QUARANTINE_TIME = 60000; // max quarantine duration (in ms)
+
+    private String address;
+    private double bytesPerSecond = 0; // effective rate of a single connection, including the time to first byte
+    private double firstByteMillis = 0;
+    private double errorRate = 0;
+    private long rangeCount = 0;
+    private long failureCount = 0;
+    private long totalBytes = 0;
+    private int activeConnections = 0;
+    private int consecutiveFailures = 0;
+    private int quarantineCount = 0; // consecutive quarantines, doubling the quarantine duration
+    private long quarantinedUntil = 0; // 0 when the breaker is closed
+    private boolean probing = false; // a probe request is in flight while half-open
+    private TokenBucket rateLimit;
+    private final LongAdder receivedBytes = new LongAdder(); // updated as each piece of a response arrives
+    private final LatencyHistogram firstByteHistogram = new LatencyHistogram();
+    private final LatencyHistogram requestHistogram = new LatencyHistogram(); // first byte and transfer
+
+    /**
+     * @param address - the mirror's URL.
+     * @param maxBytesPerSecond - the mirror's capped rate, or {@TokenBucket.UNLIMITED}.
+     */
+    public MirrorStats(String address, long maxBytesPerSecond) {
+        this.address = address;
+        this.rateLimit = new TokenBucket(maxBytesPerSecond);
+    }
+
+    /**
+     * Records a successful range request.
+     * @param bytes - the number of bytes received.
+     * @param firstByteNanos - the time between sending the request and receiving the response headers.
+     * @param transferNanos - the time spent receiving the response body.
+     */
+    public void recordSuccess(long bytes, long firstByteNanos, long transferNanos) {
+        firstByteHistogram.record(firstByteNanos);
+        requestHistogram.record(firstByteNanos + transferNanos);
+        updateAverages(bytes, firstByteNanos, transferNanos);
+    }
+
+    /**
+     * Updates the moving averages and the breaker with a successful range request.
+     */
+    private synchronized void updateAverages(long bytes, long firstByteNanos, long transferNanos) {
+        double rate = bytes / (Math.max(1, firstByteNanos + transferNanos) / 1e9);
+        double firstByte = firstByteNanos / 1e6;
+        if (isMeasured()) {
+            bytesPerSecond += SMOOTHING_FACTOR * (rate - bytesPerSecond);
+            firstByteMillis += SMOOTHING_FACTOR * (firstByte - firstByteMillis);
+        }
+        else {
+            bytesPerSecond = rate;
+            firstByteMillis = firstByte;
+        }
+        errorRate -= SMOOTHING_FACTOR * errorRate;
+        rangeCount++;
+        totalBytes += bytes;
+        consecutiveFailures = 0;
+        quarantineCount = 0;
+        quarantinedUntil = 0;
+    }
+
+    /**
+     * Records a failed range request, quarantining the mirror after too many consecutive failures,
+     * or after a failed probe.
+     * @returns true if and only if the mirror was quarantined by this failure.
+     */
+    public synchronized boolean recordFailure() {
+        errorRate += SMOOTHING_FACTOR * (1 - errorRate);
+        failureCount++;
+        consecutiveFailures++;
+        if (probing || (quarantinedUntil == 0 && consecutiveFailures >= FAILURE_THRESHOLD)) {
+            long quarantineTime = Math.min(MAX_QUARANTINE_TIME, BASE_QUARANTINE_TIME << Math.min(quarantineCount, 16));
+            quarantinedUntil = System.currentTimeMillis() + quarantineTime;
+            quarantineCount++;
+            probing = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param now - the current time (in ms).
+     * @returns true if and only if a new request may be sent to the mirror: the breaker is closed, or its
+     * quarantine is over and no probe request is in flight.
+     */
+    public synchronized boolean isAvailable(long now) {
+        return quarantinedUntil == 0 || (now >= quarantinedUntil && !probing);
+    }
+
+    /**
+     * Counts a new connection to the mirror, if it is available. The first request after a quarantine
+     * is the probe, no other request is let through until it ends.
+     * @param now - the current time (in ms).
+     * @returns true if and only if the connection was added.
+     */
+    public synchronized boolean tryAddConnection(long now) {
+        if (!isAvailable(now)) {
+            return false;
+        }
+        probing = (quarantinedUntil != 0);
+        activeConnections++;
+        return true;
+    }
+
+    /**
+     * Counts bytes just received from the mirror, before their range completes.
+     * @param bytes - the number of bytes received.
+     */
+    public void addReceivedBytes(long bytes) {
+        receivedBytes.add(bytes);
+    }
+
+    public synchronized void removeConnection() {
+        activeConnections--;
+        probing = false;
+    }
+
+    /**
+     * @returns the expected rate of a new connection to this mirror, discounted by its error rate,
+     * or 0 if the mirror was not measured yet.
+     */
+    public synchronized double getScore() {
+        return bytesPerSecond * (1 - errorRate);
+    }
+
+    /**
+     * @returns true if and only if at least a single range was downloaded from this mirror.
+     */
+    public synchronized boolean isMeasured() {
+        return rangeCount > 0;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public String getAddress() {
+        return address;
+    }
+
+    public TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.sum();
+    }
+
+    public LatencyHistogram getFirstByteHistogram() {
+        return firstByteHistogram;
+    }
+
+    public LatencyHistogram getRequestHistogram() {
+        return requestHistogram;
+    }
+
+    public double getFirstByteMillisP50() {
+        return firstByteHistogram.getPercentileMillis(0.5);
+    }
+
+    public double getFirstByteMillisP99() {
+        return firstByteHistogram.getPercentileMillis(0.99);
+    }
+
+    public double getRequestMillisP50() {
+        return requestHistogram.getPercentileMillis(0.5);
+    }
+
+    public double getRequestMillisP99() {
+        return requestHistogram.getPercentileMillis(0.99);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized double getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    public synchronized double getErrorRate() {
+        return errorRate;
+    }
+
+    public synchronized long getRangeCount() {
+        return rangeCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public synchronized long getQuarantinedUntil() {
+        return quarantinedUntil;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * The JMX management interface of a mirror's measurements, registered by {@DownloadMetrics}.
+ */
+public interface MirrorStatsMBean {
+
+    String getAddress();
+
+    double getBytesPerSecond();
+
+    long getReceivedBytes();
+
+    double getFirstByteMillis();
+
+    double getFirstByteMillisP50();
+
+    double getFirstByteMillisP99();
+
+    double getRequestMillisP50();
+
+    double getRequestMillisP99();
+
+    double getErrorRate();
+
+    long getRangeCount();
+
+    long getFailureCount();
+
+    int getActiveConnections();
+
+    long getQuarantinedUntil();
+}
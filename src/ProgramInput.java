@@ -5,6 +5,21 @@ public class ProgramInput {
     private int maxConnections;
     private ArrayList<String> serverList;
     private String fileName;
+    private WriteMode writeMode = WriteMode.BUFFERED;
+    private int maxBufferMB = BufferPool.DEFAULT_MAX_BUFFER_MB;
+    private int writerThreads = ChunkWriter.DEFAULT_WRITER_THREADS;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private TransportMode transportMode = TransportMode.HTTP1;
+    private int connectionsPerServer = Http2Transport.DEFAULT_CONNECTIONS_PER_SERVER;
+    private long maxRate = TokenBucket.UNLIMITED;
+    private long maxRatePerServer = TokenBucket.UNLIMITED;
+    private HashAlgorithm hashAlgorithm = null; // no hash of the whole file by default
+    private String expectedHash = null;
+    private boolean verify = false;
+    private String hashFile = null;
+    private String batchFile = null; // the jobs file, in batch mode
+    private int parallelFiles = BatchManager.DEFAULT_PARALLEL_FILES;
+    private String metricsFile = null; // no metrics dump by default
 
     /**
      * A compound object contains the parsed user arguments.
@@ -22,10 +37,38 @@ public class ProgramInput {
      * @returns the source file name.
      */
     private String parseFileName() {
+        if (serverList.isEmpty()) {
+            return null; // in batch mode, the files are given by the jobs file
+        }
         int lastBackslashPos = serverList.get(0).lastIndexOf('/');
         return serverList.get(0).substring(lastBackslashPos + 1);
     }
 
+    /**
+     * Creates the input of a job of a batch: the given servers and destination, along with the options
+     * given to the whole batch. The expected digest is not copied, as it belongs to a single file.
+     * @param serverList - the servers of the job's file.
+     * @param destination - the destination file path, or null for the source file name.
+     * @returns the ProgramInput object of the job.
+     */
+    public ProgramInput forJob(ArrayList<String> serverList, String destination) {
+        ProgramInput jobInput = new ProgramInput(serverList, maxConnections);
+        if (destination != null) {
+            jobInput.fileName = destination;
+        }
+        jobInput.writeMode = writeMode;
+        jobInput.maxBufferMB = maxBufferMB;
+        jobInput.writerThreads = writerThreads;
+        jobInput.threadMode = threadMode;
+        jobInput.transportMode = transportMode;
+        jobInput.connectionsPerServer = connectionsPerServer;
+        jobInput.maxRate = maxRate;
+        jobInput.maxRatePerServer = maxRatePerServer;
+        jobInput.hashAlgorithm = hashAlgorithm;
+        jobInput.verify = verify;
+        jobInput.hashFile = hashFile;
+        return jobInput;
+    }
 
     /* GETTERS & SETTERS */
     public ArrayList<String> getServerList() {
@@ -39,5 +82,125 @@ public class ProgramInput {
     public String getFileName() {
         return fileName;
     }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public int getMaxBufferMB() {
+        return maxBufferMB;
+    }
+
+    public void setMaxBufferMB(int maxBufferMB) {
+        this.maxBufferMB = maxBufferMB;
+    }
+
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    public void setWriterThreads(int writerThreads) {
+        this.writerThreads = writerThreads;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public void setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+    }
+
+    public int getConnectionsPerServer() {
+        return connectionsPerServer;
+    }
+
+    public void setConnectionsPerServer(int connectionsPerServer) {
+        this.connectionsPerServer = connectionsPerServer;
+    }
+
+    public long getMaxRate() {
+        return maxRate;
+    }
+
+    public void setMaxRate(long maxRate) {
+        this.maxRate = maxRate;
+    }
+
+    public long getMaxRatePerServer() {
+        return maxRatePerServer;
+    }
+
+    public void setMaxRatePerServer(long maxRatePerServer) {
+        this.maxRatePerServer = maxRatePerServer;
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public String getExpectedHash() {
+        return expectedHash;
+    }
+
+    public void setExpectedHash(String expectedHash) {
+        this.expectedHash = expectedHash;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public String getHashFile() {
+        return hashFile;
+    }
+
+    public void setHashFile(String hashFile) {
+        this.hashFile = hashFile;
+    }
+
+    public String getBatchFile() {
+        return batchFile;
+    }
+
+    public void setBatchFile(String batchFile) {
+        this.batchFile = batchFile;
+    }
+
+    public int getParallelFiles() {
+        return parallelFiles;
+    }
+
+    public void setParallelFiles(int parallelFiles) {
+        this.parallelFiles = parallelFiles;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
     
 }
@@ -1,3 +1,5 @@
+import java.util.Map;
+
 /**
  * A static class to handle program messages to the standard error (stderr).
  */
@@ -19,8 +21,31 @@ public class ProgramPrinter {
         printMessage("Download Failed.");
     }
 
-    public static void printDownloadPercentage(int progressPercentage) {
-        printMessage(String.format("Downloaded:\t...\t%d%%", progressPercentage));
+    public static void printDownloadProgress(int progressPercentage, double bytesPerSecond, long etaSeconds,
+                                             Map<String, Double> mirrorRates) {
+        StringBuilder progress = new StringBuilder(String.format("Downloaded:\t...\t%d%%", progressPercentage));
+        if (bytesPerSecond >= 0) {
+            progress.append(String.format("\t%.2f MB/s\tETA %s", bytesPerSecond / 1e6, formatDuration(etaSeconds)));
+        }
+        if (mirrorRates.size() > 1) {
+            for (Map.Entry<String, Double> mirrorRate : mirrorRates.entrySet()) {
+                progress.append(String.format("\n\t%s\t%.2f MB/s", mirrorRate.getKey(), mirrorRate.getValue() / 1e6));
+            }
+        }
+        printMessage(progress.toString());
+    }
+
+    /**
+     * @returns the given duration as h:mm:ss or m:ss, or "--:--" if unknown (negative).
+     */
+    private static String formatDuration(long seconds) {
+        if (seconds < 0) {
+            return "--:--";
+        }
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
     }
 
 
@@ -29,6 +54,50 @@ public class ProgramPrinter {
                 fileName, numServers, numConnections, MESSAGE_DIVIDER));
     }
 
+    public static void printConnectionStats(long connectCount, long clientCount, long requestCount,
+                                            double reuseRatio) {
+        if (clientCount > 0) {
+            printMessage(String.format("HTTP/2 clients: %d, range requests: %d (multiplexed)", clientCount, requestCount));
+            return;
+        }
+        printMessage(String.format("Connections opened: %d, range requests: %d, connection reuse: %.1f%%",
+                connectCount, requestCount, reuseRatio * 100));
+    }
+
+    public static void printMirrorStats(String address, long rangeCount, long totalBytes, double bytesPerSecond,
+                                        double firstByteMillis, long failureCount) {
+        printMessage(String.format("%s\n\t%d range(s), %.1f MB, %.2f MB/s per connection, " +
+                        "first byte after %.0f ms, %d failure(s)",
+                address, rangeCount, totalBytes / 1e6, bytesPerSecond / 1e6, firstByteMillis, failureCount));
+    }
+
+    public static void printMirrorQuarantined(String address, long quarantineMillis, Exception e) {
+        printMessage(String.format("Server %s failed repeatedly (%s), retrying it in %d seconds.",
+                address, e.getLocalizedMessage(), Math.max(1, quarantineMillis / 1000)));
+    }
+
+    public static void printFileHash(String algorithmName, String digest, String fileName) {
+        printMessage(String.format("%s: %s  %s", algorithmName, digest, fileName));
+    }
+
+    public static void printDigestMismatch(String algorithmName, String digest, String source) {
+        printMessage(String.format("The digest %s given by %s is not a %s digest.", digest, source, algorithmName));
+    }
+
+    public static void printBatchInitMessage(int fileCount, int parallelFiles, int numConnections) {
+        printMessage(String.format("\nDownloading %d file(s), %d at a time,\nusing %d connection(s) in total.\n%s\n",
+                fileCount, parallelFiles, numConnections, MESSAGE_DIVIDER));
+    }
+
+    public static void printBatchFileResult(String fileName, boolean succeeded) {
+        printMessage(String.format("%s\t%s", succeeded ? "Done:" : "Failed:", fileName));
+    }
+
+    public static void printBatchSummary(int succeededCount, int fileCount, double seconds) {
+        printMessage(String.format("%s\n%d of %d file(s) downloaded in %.1f seconds\n%s",
+                MESSAGE_DIVIDER, succeededCount, fileCount, seconds, MESSAGE_DIVIDER));
+    }
+
     public static void printSuccessMessage() {
         printMessage(String.format("%s\nDownload succeeded\n%s",
                 MESSAGE_DIVIDER, MESSAGE_DIVIDER));
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * An append-only log of the chunks completed since the last metadata compaction.
+ * Each record is a 4 bytes chunk ID followed by the chunk's 4 bytes checksum, so appending is cheap and
+ * a torn trailing record (after a crash) is simply ignored on replay.
+ */
+public class ProgressJournal {
+
+    private static final int RECORD_SIZE = 2 * Integer.BYTES;
+
+    private Path journalPath;
+    private FileChannel channel;
+    private long recordCount;
+
+    /**
+     * Opens the journal file at the given path for appending, creating it if necessary.
+     * @param journalPath - the journal file path.
+     * @throws IOException if the journal file could not be opened.
+     */
+    public ProgressJournal(Path journalPath) throws IOException {
+        this.journalPath = journalPath;
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.recordCount = channel.size() / RECORD_SIZE;
+        this.channel.position(recordCount * RECORD_SIZE); // overwriting a torn trailing record, if any
+    }
+
+    /**
+     * Appends a record for each of the given chunks, and forces the records to the storage device.
+     * @param chunks - the completed chunks to record.
+     * @throws IOException if the records could not be written.
+     */
+    public void append(List<Chunk> chunks) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(chunks.size() * RECORD_SIZE);
+        for (Chunk c : chunks) {
+            records.putInt(c.getID());
+            records.putInt(c.getChecksum());
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        channel.force(false);
+        recordCount += chunks.size();
+    }
+
+    /**
+     * Discards all the records, after they were compacted into a metadata snapshot.
+     * @throws IOException if the journal could not be truncated.
+     */
+    public void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(false);
+        recordCount = 0;
+    }
+
+    /**
+     * Replays the journal records into the given bitmap, marking each recorded chunk
+     * as completed with its checksum. Records of chunk IDs out of the table bounds are ignored.
+     * @param chunkTable - the bitmap of the chunks completed up to the last compaction.
+     * @throws IOException if the journal could not be read.
+     */
+    public void replay(MinifiedChunkTable chunkTable) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        while (records.remaining() >= RECORD_SIZE) {
+            int chunkID = records.getInt();
+            int checksum = records.getInt();
+            if (chunkID >= 0 && chunkID < chunkTable.getChunkCount()) {
+                chunkTable.markCompleted(chunkID, checksum);
+            }
+        }
+    }
+
+    /**
+     * Closes the journal file.
+     */
+    public void close() {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to properly close the progress journal.", e);
+        }
+    }
+
+    /* GETTERS & SETTERS */
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+}
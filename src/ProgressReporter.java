@@ -0,0 +1,103 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the progress of a download at a fixed interval, from its own thread: the percentage received,
+ * the smoothed download rate, the estimated time left, and the rate of each server.
+ * It only reads the striped counters updated by the getters and the writers, which never wait on it,
+ * nor on the console.
+ */
+public class ProgressReporter {
+
+    private static final long REPORT_INTERVAL = 1000; // time (in ms) between two reports
+    private static final double SMOOTHING = 0.3; // weight of the last interval in the smoothed rate (EWMA)
+
+    private DownloadStatus downloadStatus;
+    private List<MirrorStats> mirrors;
+    private long[] lastMirrorBytes; // the bytes received from each server at the last sample
+    private long lastProgressBytes;
+    private long lastSampleTime; // in ns
+    private double smoothedRate = -1; // bytes per second, or negative before the first sample
+    private ScheduledExecutorService timer;
+
+    /**
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param mirrors - the servers of the file, counting the bytes received from each one.
+     */
+    public ProgressReporter(DownloadStatus downloadStatus, List<MirrorStats> mirrors) {
+        this.downloadStatus = downloadStatus;
+        this.mirrors = mirrors;
+        this.lastMirrorBytes = new long[mirrors.size()];
+    }
+
+    /**
+     * Starts reporting the progress, every {@REPORT_INTERVAL} ms.
+     */
+    public void start() {
+        lastProgressBytes = downloadStatus.getProgressBytes();
+        lastSampleTime = System.nanoTime();
+        for (int i = 0; i < mirrors.size(); i++) {
+            lastMirrorBytes[i] = mirrors.get(i).getReceivedBytes();
+        }
+        printProgress(-1, -1, new LinkedHashMap<>());
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::sample, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Samples the counters, and reports the rates over the last interval.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleTime) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long progressBytes = downloadStatus.getProgressBytes();
+        // a chunk received again, or abandoned by a failed request, is taken back from the progress
+        double rate = Math.max(0, progressBytes - lastProgressBytes) / seconds;
+        smoothedRate = (smoothedRate < 0) ? rate : SMOOTHING * rate + (1 - SMOOTHING) * smoothedRate;
+        Map<String, Double> mirrorRates = new LinkedHashMap<>();
+        for (int i = 0; i < mirrors.size(); i++) {
+            long mirrorBytes = mirrors.get(i).getReceivedBytes();
+            mirrorRates.put(mirrors.get(i).getAddress(), (mirrorBytes - lastMirrorBytes[i]) / seconds);
+            lastMirrorBytes[i] = mirrorBytes;
+        }
+        lastProgressBytes = progressBytes;
+        lastSampleTime = now;
+        long remainingBytes = downloadStatus.getTotalFileSize() - progressBytes;
+        long etaSeconds = (smoothedRate > 0) ? (long)Math.ceil(remainingBytes / smoothedRate) : -1;
+        printProgress(smoothedRate, etaSeconds, mirrorRates);
+    }
+
+    private void printProgress(double bytesPerSecond, long etaSeconds, Map<String, Double> mirrorRates) {
+        long totalFileSize = Math.max(1, downloadStatus.getTotalFileSize());
+        int percentage = (int)(100 * downloadStatus.getProgressBytes() / totalFileSize);
+        ProgramPrinter.printDownloadProgress(percentage, bytesPerSecond, etaSeconds, mirrorRates);
+    }
+
+    /**
+     * Stops the reports, then reports the final progress, once the download is done.
+     */
+    public void stop() {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (downloadStatus.isCompleted()) {
+            sample();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds a metrics snapshot in the Prometheus text exposition format. The samples of a metric may be
+ * added in any order (e.g. a download after another): they are grouped under a single HELP and TYPE
+ * header per metric.
+ */
+public class PrometheusText {
+
+    private static final String PREFIX = "idcdm_"; // prefix of all the metric names
+
+    private Map<String, StringBuilder> families = new LinkedHashMap<>(); // the samples of each metric, by name
+
+    /**
+     * Adds a sample of a value which may go up and down.
+     * @param name - the metric name, without the common prefix.
+     * @param help - the metric description.
+     * @param labels - the sample labels, as built by {@labels}.
+     * @param value - the sample value.
+     */
+    public void gauge(String name, String help, String labels, double value) {
+        family(name, "gauge", help).append(PREFIX).append(name).append(labels).append(' ')
+                .append(format(value)).append('\n');
+    }
+
+    /**
+     * Adds a sample of a value which only goes up. The name should end with "_total".
+     * @param name - the metric name, without the common prefix.
+     * @param help - the metric description.
+     * @param labels - the sample labels, as built by {@labels}.
+     * @param value - the sample value.
+     */
+    public void counter(String name, String help, String labels, double value) {
+        family(name, "counter", help).append(PREFIX).append(name).append(labels).append(' ')
+                .append(format(value)).append('\n');
+    }
+
+    /**
+     * Adds the cumulative buckets, sum and count of a histogram of durations, in seconds.
+     * @param name - the metric name, without the common prefix. It should end with "_seconds".
+     * @param help - the metric description.
+     * @param labels - the sample labels, as built by {@labels}.
+     * @param histogram - the histogram of durations.
+     */
+    public void histogram(String name, String help, String labels, LatencyHistogram histogram) {
+        StringBuilder family = family(name, "histogram", help);
+        String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+        double[] bounds = LatencyHistogram.getBucketBounds();
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += histogram.getBucketCount(i);
+            String bound = (i < bounds.length) ? format(bounds[i]) : "+Inf";
+            family.append(PREFIX).append(name).append("_bucket").append(labelPrefix)
+                    .append("le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        family.append(PREFIX).append(name).append("_sum").append(labels).append(' ')
+                .append(format(histogram.getTotalSeconds())).append('\n');
+        family.append(PREFIX).append(name).append("_count").append(labels).append(' ')
+                .append(cumulative).append('\n');
+    }
+
+    /**
+     * @param namesAndValues - the label names, each one followed by its value.
+     * @returns the labels of a sample, with their values escaped.
+     */
+    public static String labels(String... namesAndValues) {
+        StringBuilder labels = new StringBuilder("{");
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            if (i > 0) labels.append(',');
+            String value = namesAndValues[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("\n", "\\n");
+            labels.append(namesAndValues[i]).append("=\"").append(value).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    /**
+     * @returns the samples of the given metric, created with their header on first use.
+     */
+    private StringBuilder family(String name, String type, String help) {
+        return families.computeIfAbsent(name, key -> new StringBuilder()
+                .append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n'));
+    }
+
+    /**
+     * @returns the given value, without a fraction if it is an integer.
+     */
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * @returns the snapshot, in the Prometheus text exposition format.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (StringBuilder family : families.values()) {
+            text.append(family);
+        }
+        return text.toString();
+    }
+}
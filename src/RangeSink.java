@@ -0,0 +1,316 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.zip.CRC32C;
+
+/**
+ * Receives the response body of a range request, in order and in pieces of any size, and hands each of
+ * the range's chunks over to the writer as soon as the chunk is complete, so the progress is tracked at
+ * the chunk granularity.
+ * Chunks are claimed one at a time, so the range may be truncated by a split while it is read; the sink
+ * then stops accepting data, and the rest of the response is abandoned.
+ * In streaming mode the data is written directly into the destination file, at the chunk's offset.
+ * In mapped mode it is copied into the destination file's mapped window, and each completed chunk is
+ * recorded by the writer on the calling thread, instead of being enqueued.
+ * Otherwise each chunk is collected into a buffer taken from the buffer pool.
+ * The CRC-32C checksum of each chunk is computed on the way, for the metadata's checksums manifest.
+ * The received bytes are counted in the download status as they arrive, for the progress reporting.
+ * Every piece received is taken from the global and the mirror's token buckets first, so the sink blocks
+ * its transport while the capped rates are exceeded. An asynchronous transport admits each piece instead,
+ * and writes it once due without blocking (see {@admit} and {@writeAvailable}).
+ * Not thread safe: a transport pushes the data of a response from a single thread at a time.
+ */
+public class RangeSink {
+
+    private InFlightRange inFlightRange;
+    private ChunkManager chunkManager;
+    private PriorityBlockingQueue<Chunk> chunkQueue;
+    private DownloadStatus downloadStatus;
+    private TokenBucket rateLimit;
+    private BufferPool bufferPool;
+    private FileChannel destinationChannel;
+    private MappedDestination mappedDestination;
+    private ChunkWriter chunkWriter; // records the completed chunks in mapped mode
+
+    private ChunkRange currentChunk; // the claimed chunk being received, or null
+    private ByteBuffer currentBuffer; // the current chunk's data buffer, in buffered mode
+    private CRC32C checksum = new CRC32C(); // of the current chunk's data
+    private long position; // the file position of the next byte to receive
+    private long responseTime = 0; // the time (in ns) the response headers were received
+    private long admissionTime; // the time (in ns) the last admitted piece may be written at
+    private long rateVersion; // the rate version of the global token bucket at the last admission
+    private long mirrorRateVersion; // the rate version of the mirror's token bucket at the last admission
+
+    /**
+     * Creates a sink collecting the chunks' data into buffers taken from the given pool.
+     * @param inFlightRange - the range being fetched.
+     * @param chunkManager - a reference to object tracking the chunk downloaded.
+     * @param chunkQueue - a reference to priority queue handling chunks waiting to be written to disk.
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param bufferPool - the pool to take the chunks' data buffers from.
+     */
+    public RangeSink(InFlightRange inFlightRange, ChunkManager chunkManager, PriorityBlockingQueue<Chunk> chunkQueue,
+                     DownloadStatus downloadStatus, TokenBucket rateLimit, BufferPool bufferPool) {
+        this.inFlightRange = inFlightRange;
+        this.chunkManager = chunkManager;
+        this.chunkQueue = chunkQueue;
+        this.downloadStatus = downloadStatus;
+        this.rateLimit = rateLimit;
+        this.bufferPool = bufferPool;
+        this.position = inFlightRange.getRange().start();
+    }
+
+    /**
+     * Creates a sink working in streaming mode: the data is written directly into the destination file,
+     * and only a completion notice is enqueued.
+     * @param inFlightRange - the range being fetched.
+     * @param chunkManager - a reference to object tracking the chunk downloaded.
+     * @param chunkQueue - a reference to priority queue handling chunks completion notices.
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param destinationChannel - the destination file channel to write the range into.
+     */
+    public RangeSink(InFlightRange inFlightRange, ChunkManager chunkManager, PriorityBlockingQueue<Chunk> chunkQueue,
+                     DownloadStatus downloadStatus, TokenBucket rateLimit, FileChannel destinationChannel) {
+        this(inFlightRange, chunkManager, chunkQueue, downloadStatus, rateLimit, (BufferPool) null);
+        this.destinationChannel = destinationChannel;
+    }
+
+    /**
+     * Creates a sink working in mapped mode: the data is copied into the mapped destination file, and the
+     * completed chunks are recorded by the writer on the calling thread.
+     * @param inFlightRange - the range being fetched.
+     * @param chunkManager - a reference to object tracking the chunk downloaded.
+     * @param chunkWriter - the writer recording the completed chunks, without running its own thread.
+     * @param downloadStatus - the download status, counting the received bytes.
+     * @param rateLimit - the token bucket capping the rate of the whole download.
+     * @param mappedDestination - the mapped destination file to copy the range into.
+     */
+    public RangeSink(InFlightRange inFlightRange, ChunkManager chunkManager, ChunkWriter chunkWriter,
+                     DownloadStatus downloadStatus, TokenBucket rateLimit, MappedDestination mappedDestination) {
+        this(inFlightRange, chunkManager, null, downloadStatus, rateLimit, (BufferPool) null);
+        this.chunkWriter = chunkWriter;
+        this.mappedDestination = mappedDestination;
+    }
+
+    /**
+     * Registers the arrival of the response headers, for measuring the time to first byte.
+     */
+    public void onResponse() {
+        responseTime = System.nanoTime();
+    }
+
+    /**
+     * Consumes the given piece of the response body. Blocks while the capped rates are exceeded, and while
+     * the buffer pool is exhausted, until the writer releases a buffer.
+     * @param data - the next bytes of the response body; its position is advanced past the consumed bytes.
+     * @returns true if more data is expected, false if the range (possibly truncated by a split) is complete
+     * and the rest of the response should be abandoned.
+     * @throws IOException if the data could not be written to the destination file, or mapped.
+     * @throws InterruptedException if interrupted while waiting for the rate limit or a buffer.
+     */
+    public boolean write(ByteBuffer data) throws IOException, InterruptedException {
+        rateLimit.acquire(data.remaining());
+        inFlightRange.getMirror().getRateLimit().acquire(data.remaining());
+        inFlightRange.getMirror().addReceivedBytes(data.remaining());
+        return consume(data, true);
+    }
+
+    /**
+     * Admits the next piece of the response body, for the transports which must not block their thread
+     * (see {@writeAvailable}): its bytes are taken from the global and the mirror's token buckets at once,
+     * and the piece may be written once {@getAdmissionWait} is 0.
+     * @param bytes - the size of the piece.
+     * @returns the time to wait (in ns) before writing the piece, 0 if it may be written at once.
+     */
+    public long admit(int bytes) {
+        TokenBucket mirrorRateLimit = inFlightRange.getMirror().getRateLimit();
+        rateVersion = rateLimit.getRateVersion();
+        mirrorRateVersion = mirrorRateLimit.getRateVersion();
+        long wait = Math.max(rateLimit.reserve(bytes), mirrorRateLimit.reserve(bytes));
+        inFlightRange.getMirror().addReceivedBytes(bytes);
+        admissionTime = System.nanoTime() + wait;
+        return wait;
+    }
+
+    /**
+     * @returns the time left (in ns) before the last admitted piece may be written, 0 once it is due, or once
+     * a capped rate changed (forgiving the reserved bytes).
+     */
+    public long getAdmissionWait() {
+        if (rateLimit.getRateVersion() != rateVersion ||
+                inFlightRange.getMirror().getRateLimit().getRateVersion() != mirrorRateVersion) {
+            return 0;
+        }
+        return Math.max(0, admissionTime - System.nanoTime());
+    }
+
+    /**
+     * Consumes as much of an admitted piece of the response body as possible, without blocking: in buffered
+     * mode, the consumption stops before the next chunk if the buffer pool is exhausted, leaving the rest of
+     * the piece to write once a buffer is released.
+     * @param data - the admitted piece; its position is advanced past the consumed bytes.
+     * @returns true if more data is expected (possibly the rest of the piece), false if the range is complete.
+     * @throws IOException if the data could not be written to the destination file, or mapped.
+     */
+    public boolean writeAvailable(ByteBuffer data) throws IOException {
+        try {
+            return consume(data, false);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // never waits: not expected
+            throw new InterruptedIOException("Interrupted while writing the range.");
+        }
+    }
+
+    /**
+     * Writes the given piece into the claimed chunks, claiming them one at a time.
+     * @param waitForBuffer - true to wait for a buffer when the pool is exhausted, false to stop before the
+     *                      next chunk instead.
+     */
+    private boolean consume(ByteBuffer data, boolean waitForBuffer) throws IOException, InterruptedException {
+        while (data.hasRemaining()) {
+            if (currentChunk == null) {
+                if (!inFlightRange.hasUnclaimedChunks()) {
+                    return false;
+                }
+                ByteBuffer buffer = null;
+                if (bufferPool != null) {
+                    buffer = waitForBuffer ? bufferPool.acquire() : bufferPool.tryAcquire();
+                    if (buffer == null) {
+                        return true; // the rest of the data waits for a buffer
+                    }
+                }
+                if (!claimNextChunk(buffer)) {
+                    return false;
+                }
+            }
+            int length = (int)Math.min(data.remaining(), currentChunk.end() + 1 - position);
+            ByteBuffer piece = data.slice();
+            piece.limit(length);
+            checksum.update(piece.duplicate());
+            if (mappedDestination != null) {
+                mappedDestination.write(piece, position);
+            }
+            else if (destinationChannel != null) {
+                while (piece.hasRemaining()) {
+                    destinationChannel.write(piece, position + (length - piece.remaining()));
+                }
+            }
+            else {
+                currentBuffer.put(piece);
+            }
+            data.position(data.position() + length);
+            position += length;
+            downloadStatus.addReceivedBytes(length);
+            if (position > currentChunk.end()) {
+                completeChunk();
+            }
+        }
+        return currentChunk != null || inFlightRange.hasUnclaimedChunks();
+    }
+
+    /**
+     * Claims the next chunk of the range.
+     * @param buffer - the buffer taken for the chunk's data in buffered mode, released if no chunk is left,
+     *               or null.
+     * @returns false if the range has no chunk left.
+     */
+    private boolean claimNextChunk(ByteBuffer buffer) {
+        int chunkIndex = inFlightRange.claimNextChunk();
+        if (chunkIndex < 0) {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+            }
+            return false;
+        }
+        currentChunk = inFlightRange.getRange().chunkAt(chunkIndex);
+        position = currentChunk.start();
+        checksum.reset();
+        if (buffer != null) {
+            currentBuffer = buffer;
+            currentBuffer.limit((int)currentChunk.size());
+        }
+        return true;
+    }
+
+    /**
+     * Marks the received chunk as downloaded in the chunks table, then creates a new Chunk object with its
+     * data, and adding it to the queue of the chunks waiting to be written to disk.
+     * In streaming mode the data was already written, and the Chunk is only a completion notice.
+     * A chunk already downloaded by another getter is not enqueued again.
+     */
+    private void completeChunk() {
+        int chunkIndex = currentChunk.getChunkIndex();
+        if (this.chunkManager.markDownloaded(chunkIndex)) {
+            Chunk c;
+            if (currentBuffer != null) {
+                currentBuffer.flip();
+                c = new Chunk(chunkIndex, currentBuffer, currentChunk, bufferPool);
+            }
+            else {
+                c = new Chunk(chunkIndex, currentChunk);
+            }
+            c.setChecksum((int)checksum.getValue());
+            if (mappedDestination != null) {
+                mappedDestination.markWritten(chunkIndex);
+                chunkWriter.completeInPlace(c);
+            }
+            else {
+                this.chunkQueue.put(c);
+            }
+        }
+        else {
+            downloadStatus.addReceivedBytes(-currentChunk.size()); // received twice
+            if (currentBuffer != null) {
+                bufferPool.release(currentBuffer);
+            }
+        }
+        inFlightRange.completeChunk(currentChunk.size());
+        currentChunk = null;
+        currentBuffer = null;
+    }
+
+    /**
+     * Checks that the response body delivered the whole range (unless it was truncated by a split).
+     * @throws EOFException if the body ended before the range was fully received.
+     */
+    public void finish() throws EOFException {
+        if (currentChunk != null || inFlightRange.hasUnclaimedChunks()) {
+            throw new EOFException("Connection closed before the range was fully read.");
+        }
+    }
+
+    /**
+     * @returns true if and only if the whole requested range was received, so the rest of the response
+     * body is empty.
+     */
+    public boolean isFullyReceived() {
+        return currentChunk == null && position == inFlightRange.getRange().end() + 1;
+    }
+
+    /**
+     * Releases the buffer of a chunk which was not completely received, after a failure, and takes its
+     * received bytes back from the progress.
+     */
+    public void close() {
+        if (currentChunk != null) {
+            downloadStatus.addReceivedBytes(currentChunk.start() - position);
+        }
+        if (currentBuffer != null) {
+            bufferPool.release(currentBuffer);
+            currentBuffer = null;
+        }
+        currentChunk = null;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * The source file information reported by a server, in response to a size probe.
+ */
+public class RemoteFileInfo {
+
+    private long size;
+    private String validator;
+
+    /**
+     * @param size - the file size in bytes.
+     * @param validator - the file ETag or Last-Modified value, or null if unknown.
+     */
+    public RemoteFileInfo(long size, String validator) {
+        this.size = size;
+        this.validator = validator;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+}
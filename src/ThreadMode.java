@@ -0,0 +1,28 @@
+/**
+ * The available ways of running the getters.
+ */
+public enum ThreadMode {
+
+    /**
+     * Each getter runs on a platform thread of a fixed-size pool, one thread per connection.
+     */
+    PLATFORM,
+
+    /**
+     * Each getter runs on its own virtual thread (Java 21 and later), so thousands of connections
+     * blocking on network I/O do not need thousands of platform threads.
+     */
+    VIRTUAL;
+
+    /**
+     * Parses a thread mode name given as a program argument (case insensitive).
+     * @param name - the thread mode name.
+     * @returns the matching ThreadMode, or null if no such mode exists.
+     */
+    public static ThreadMode fromName(String name) {
+        for (ThreadMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket capping the rate (in bytes per second) of the data read by any number of threads.
+ * The bucket is kept as a single atomic "theoretical arrival time": each reader reserves the time its bytes
+ * take at the capped rate with a compare-and-set, then sleeps only until its own reservation is due.
+ * There is no refill thread and no lock, and the readers are released one after the other at the capped
+ * rate instead of all together once the bucket refills, so the throughput stays steady without bursts.
+ * The rate can be changed at any time, from any thread; the readers already waiting are woken up shortly.
+ */
+public class TokenBucket {
+
+    public static final long UNLIMITED = 0; // rate of a bucket which never blocks
+
+    public static final long MAX_SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // max sleep before checking a rate change
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // data allowed at once, in time at the capped rate
+    private static final long UNLIMITED_DUE_TIME = Long.MIN_VALUE; // due time of the bytes of an unlimited bucket
+
+    private volatile long bytesPerSecond;
+    private AtomicLong arrivalTime = new AtomicLong(System.nanoTime()); // the time (in ns) the reserved bytes are due
+    private volatile long rateVersion = 0; // incremented on each rate change
+
+    /**
+     * @param bytesPerSecond - the capped rate, or {@UNLIMITED}.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket, blocking while the capped rate is exceeded.
+     * Returns at once when the bucket is unlimited.
+     * @param bytes - the number of bytes read.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long version = rateVersion;
+        long due = reserveDueTime(bytes);
+        if (due == UNLIMITED_DUE_TIME) {
+            return;
+        }
+        long wait;
+        while ((wait = due - BURST_NANOS - System.nanoTime()) > 0 && version == rateVersion) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(wait, MAX_SLEEP_NANOS));
+        }
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket without blocking, for the readers which must not wait
+     * on their thread (asynchronous transports): the bytes are reserved at once, and may be read once the
+     * returned delay elapsed, or once the rate changed (see {@getRateVersion}).
+     * @param bytes - the number of bytes read.
+     * @returns the time to wait (in ns) before reading the bytes, 0 if they may be read at once.
+     */
+    public long reserve(long bytes) {
+        long due = reserveDueTime(bytes);
+        return (due == UNLIMITED_DUE_TIME) ? 0 : Math.max(0, due - BURST_NANOS - System.nanoTime());
+    }
+
+    /**
+     * Reserves the time the given bytes take at the capped rate.
+     * @returns the time (in ns) the reservation is due, or {@UNLIMITED_DUE_TIME} if the bucket is unlimited.
+     */
+    private long reserveDueTime(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= UNLIMITED) {
+            return UNLIMITED_DUE_TIME;
+        }
+        long cost = (long)((double)bytes * TimeUnit.SECONDS.toNanos(1) / rate);
+        long now = System.nanoTime();
+        while (true) {
+            long current = arrivalTime.get();
+            // an idle bucket does not save up more than the burst
+            long due = Math.max(current, now - BURST_NANOS) + cost;
+            if (arrivalTime.compareAndSet(current, due)) {
+                return due;
+            }
+        }
+    }
+
+    /**
+     * Changes the capped rate. The bytes reserved at the previous rate are forgiven.
+     * @param bytesPerSecond - the new rate, or {@UNLIMITED}.
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        arrivalTime.set(System.nanoTime());
+        rateVersion++;
+    }
+
+    /* GETTERS & SETTERS */
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @returns a number incremented on each rate change, which forgives the reserved bytes.
+     */
+    public long getRateVersion() {
+        return rateVersion;
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A way of fetching the source file over the network: probing its size, and fetching byte ranges of it
+ * into a RangeSink. A transport may fetch synchronously, on the calling thread, or asynchronously.
+ */
+public interface Transport {
+
+    /**
+     * Fetches the size of the source file, along with its validator (ETag or Last-Modified).
+     * @param address - the URL of the file on a server.
+     * @returns the file information.
+     * @throws IOException if the server could not be reached, or did not report the file size.
+     */
+    RemoteFileInfo probe(String address) throws IOException;
+
+    /**
+     * Requests the given range, and pushes the response body into the sink until the sink stops
+     * accepting data or the body ends.
+     * @param range - the range to request.
+     * @param address - the URL of the file on the chosen server.
+     * @param sink - the destination of the range's data.
+     * @returns a future completed once the sink received its data, or failed with the request's error
+     * (an IOException, or an InterruptedException while waiting for a buffer).
+     */
+    CompletableFuture<Void> fetch(ChunkRange range, String address, RangeSink sink);
+
+    /**
+     * @returns true if and only if {@fetch} returns before the range is fetched, without holding a thread
+     * per request.
+     */
+    boolean isAsync();
+
+    /**
+     * Closes the connections of this transport.
+     */
+    void close();
+}
@@ -0,0 +1,29 @@
+/**
+ * The available transports for fetching the file's ranges.
+ */
+public enum TransportMode {
+
+    /**
+     * Each getter thread sends its range requests one after the other over its own persistent
+     * HTTP/1.1 connection to each server.
+     */
+    HTTP1,
+
+    /**
+     * A single dispatcher sends the range requests asynchronously with java.net.http.HttpClient, multiplexed
+     * over a few HTTP/2 connections per server (falling back to HTTP/1.1 when the server does not support it).
+     */
+    HTTP2;
+
+    /**
+     * Parses a transport mode name given as a program argument (case insensitive).
+     * @param name - the transport mode name.
+     * @returns the matching TransportMode, or null if no such mode exists.
+     */
+    public static TransportMode fromName(String name) {
+        for (TransportMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return null;
+    }
+}
@@ -2,23 +2,252 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class UserInputHandler {
 
+    private static final String OPTION_PREFIX = "--"; // prefix of the optional named arguments
+    private static final String WRITE_MODE_OPTION = "--write-mode";
+    private static final String MAX_BUFFER_MB_OPTION = "--max-buffer-mb";
+    private static final String WRITER_THREADS_OPTION = "--writer-threads";
+    private static final String THREADS_OPTION = "--threads";
+    private static final String TRANSPORT_OPTION = "--transport";
+    private static final String CONNECTIONS_PER_SERVER_OPTION = "--connections-per-server";
+    private static final String MAX_RATE_OPTION = "--max-rate";
+    private static final String MAX_RATE_PER_SERVER_OPTION = "--max-rate-per-server";
+    private static final String HASH_OPTION = "--hash";
+    private static final String EXPECTED_HASH_OPTION = "--expected-hash";
+    private static final String HASH_FILE_OPTION = "--hash-file";
+    private static final String VERIFY_OPTION = "--verify"; // a flag, taking no value
+    private static final String BATCH_OPTION = "--batch";
+    private static final String PARALLEL_FILES_OPTION = "--parallel-files";
+    private static final String METRICS_FILE_OPTION = "--metrics-file";
+    private static final Pattern RATE_PATTERN = Pattern.compile("^([0-9]{1,9})([KkMmGg]?)$"); // bytes per second, with an optional unit
+
+    /**
+     * Checks that the arguments contain one or two positional arguments (in batch mode, at most one: the
+     * connections budget), that every named option is a known flag, or a known option followed by
+     * a valid value, and that an expected digest given along with a hash algorithm is of that algorithm.
+     * @param args - the user input arguments.
+     * @return true if and only if the arguments can be parsed by {@parseArguments}.
+     */
+    public static boolean isValidUsage(String[] args) {
+        List<String> positionalArgs = new ArrayList<>();
+        boolean isBatch = false;
+        HashAlgorithm hashAlgorithm = null;
+        String expectedHash = null;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith(OPTION_PREFIX)) {
+                positionalArgs.add(args[i]);
+            }
+            else if (isFlag(args[i])) {
+                continue;
+            }
+            else if (i + 1 >= args.length || !isValidOption(args[i], args[++i])) {
+                return false;
+            }
+            else if (args[i - 1].equals(BATCH_OPTION)) {
+                isBatch = true;
+            }
+            else if (args[i - 1].equals(HASH_OPTION)) {
+                hashAlgorithm = HashAlgorithm.fromName(args[i]);
+            }
+            else if (args[i - 1].equals(EXPECTED_HASH_OPTION)) {
+                expectedHash = args[i];
+            }
+        }
+        if (!isMatchingDigest(hashAlgorithm, expectedHash, EXPECTED_HASH_OPTION)) {
+            return false;
+        }
+        if (isBatch) {
+            return positionalArgs.isEmpty() ||
+                    (positionalArgs.size() == 1 && isPositiveInteger(positionalArgs.get(0)));
+        }
+        return positionalArgs.size() >= 1 && positionalArgs.size() <= 2;
+    }
+
+    /**
+     * @param name - the option name, including its prefix.
+     * @return true if and only if the option is a flag, taking no value.
+     */
+    private static boolean isFlag(String name) {
+        return name.equals(VERIFY_OPTION);
+    }
+
+    /**
+     * @param name - the option name, including its prefix.
+     * @param value - the value given to the option.
+     * @return true if and only if the option is known and its value can be parsed.
+     */
+    private static boolean isValidOption(String name, String value) {
+        switch (name) {
+            case WRITE_MODE_OPTION:
+                return WriteMode.fromName(value) != null;
+            case THREADS_OPTION:
+                return ThreadMode.fromName(value) != null;
+            case TRANSPORT_OPTION:
+                return TransportMode.fromName(value) != null;
+            case MAX_BUFFER_MB_OPTION:
+            case WRITER_THREADS_OPTION:
+            case CONNECTIONS_PER_SERVER_OPTION:
+            case PARALLEL_FILES_OPTION:
+                return isPositiveInteger(value);
+            case MAX_RATE_OPTION:
+            case MAX_RATE_PER_SERVER_OPTION:
+                return parseRate(value) > 0;
+            case HASH_OPTION:
+                return HashAlgorithm.fromName(value) != null;
+            case EXPECTED_HASH_OPTION:
+                return isValidDigest(value);
+            case HASH_FILE_OPTION:
+            case BATCH_OPTION:
+            case METRICS_FILE_OPTION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param value - an option value.
+     * @return true if and only if the value is a positive decimal integer.
+     */
+    private static boolean isPositiveInteger(String value) {
+        return value.matches("^[0-9]{1,9}$") && Integer.parseInt(value) > 0;
+    }
+
+    /**
+     * @param value - an option value.
+     * @return true if and only if the value is a hexadecimal digest of one of the hash algorithms.
+     */
+    private static boolean isValidDigest(String value) {
+        return value.matches("^[0-9a-fA-F]+$") && HashAlgorithm.fromDigest(value) != null;
+    }
+
+    /**
+     * Checks that the expected digest was produced by the chosen hash algorithm (its length is the
+     * algorithm's), printing an error otherwise: the download would be reported corrupted once complete.
+     * @param hashAlgorithm - the hash algorithm chosen by the user, or null to derive it from the digest.
+     * @param expectedHash - the expected digest of the file, or null.
+     * @param source - where the digest was given (an option, or a hash file), for the error message.
+     * @return true if and only if the digest is missing, or of the chosen algorithm.
+     */
+    public static boolean isMatchingDigest(HashAlgorithm hashAlgorithm, String expectedHash, String source) {
+        if (hashAlgorithm == null || expectedHash == null || HashAlgorithm.fromDigest(expectedHash) == hashAlgorithm) {
+            return true;
+        }
+        ProgramPrinter.printDigestMismatch(hashAlgorithm.getDisplayName(), expectedHash, source);
+        return false;
+    }
+
+    /**
+     * @param value - a rate option value: a number of bytes per second, optionally followed by
+     *                a K, M or G unit (powers of 1024).
+     * @return the rate in bytes per second, or -1 if the value is not a valid rate.
+     */
+    private static long parseRate(String value) {
+        Matcher matcher = RATE_PATTERN.matcher(value);
+        if (!matcher.matches()) {
+            return -1;
+        }
+        String unit = matcher.group(2).toUpperCase();
+        int shift = unit.isEmpty() ? 0 : 10 * ("KMG".indexOf(unit) + 1);
+        return Long.parseLong(matcher.group(1)) << shift;
+    }
+
     /**
-     * Assuming program arguments are correct, parsing the servers list and
-     * the max connections defined by the user.
+     * Assuming program arguments are correct, parsing the servers list,
+     * the max connections and the named options defined by the user.
+     * In batch mode, the servers are given by the jobs file, and the max connections is the connections
+     * budget of the whole batch.
      * @param args - the user input arguments.
      * @return ProgramInput object.
      */
     public static ProgramInput parseArguments(String[] args) {
         int maxConnection = 1; // set default number of connections to 1
-        ArrayList<String> serverList = getServerAddresses(args[0]);
+        boolean isBatch = false;
+        List<String> positionalArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith(OPTION_PREFIX)) {
+                if (args[i].equals(BATCH_OPTION)) isBatch = true;
+                if (!isFlag(args[i])) i++; // skipping the option's value
+            }
+            else positionalArgs.add(args[i]);
+        }
+        ArrayList<String> serverList = isBatch ? new ArrayList<>() : getServerAddresses(positionalArgs.get(0));
 
-        if (args.length > 1) {
-            maxConnection = Integer.parseInt(args[1]);
+        int connectionsIndex = isBatch ? 0 : 1; // no servers list in batch mode, only the connections budget
+        if (positionalArgs.size() > connectionsIndex) {
+            maxConnection = Integer.parseInt(positionalArgs.get(connectionsIndex));
+        }
+        ProgramInput programInput = new ProgramInput(serverList, maxConnection);
+        parseOptions(args, programInput);
+        if (programInput.getHashFile() != null && !isBatch) {
+            programInput.setExpectedHash(readHashFile(programInput.getHashFile(), programInput.getFileName()));
+        }
+        return programInput;
+    }
+
+    /**
+     * Applies the named options found in the given arguments to the given ProgramInput object.
+     * @param args - the user input arguments.
+     * @param programInput - the object to store the options in.
+     */
+    private static void parseOptions(String[] args, ProgramInput programInput) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith(OPTION_PREFIX)) continue;
+            if (args[i].equals(VERIFY_OPTION)) {
+                programInput.setVerify(true);
+                continue;
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case WRITE_MODE_OPTION:
+                    programInput.setWriteMode(WriteMode.fromName(value));
+                    break;
+                case MAX_BUFFER_MB_OPTION:
+                    programInput.setMaxBufferMB(Integer.parseInt(value));
+                    break;
+                case WRITER_THREADS_OPTION:
+                    programInput.setWriterThreads(Integer.parseInt(value));
+                    break;
+                case THREADS_OPTION:
+                    programInput.setThreadMode(ThreadMode.fromName(value));
+                    break;
+                case TRANSPORT_OPTION:
+                    programInput.setTransportMode(TransportMode.fromName(value));
+                    break;
+                case CONNECTIONS_PER_SERVER_OPTION:
+                    programInput.setConnectionsPerServer(Integer.parseInt(value));
+                    break;
+                case MAX_RATE_OPTION:
+                    programInput.setMaxRate(parseRate(value));
+                    break;
+                case MAX_RATE_PER_SERVER_OPTION:
+                    programInput.setMaxRatePerServer(parseRate(value));
+                    break;
+                case HASH_OPTION:
+                    programInput.setHashAlgorithm(HashAlgorithm.fromName(value));
+                    break;
+                case EXPECTED_HASH_OPTION:
+                    programInput.setExpectedHash(value.toLowerCase());
+                    break;
+                case HASH_FILE_OPTION:
+                    programInput.setHashFile(value);
+                    break;
+                case BATCH_OPTION:
+                    programInput.setBatchFile(value);
+                    break;
+                case PARALLEL_FILES_OPTION:
+                    programInput.setParallelFiles(Integer.parseInt(value));
+                    break;
+                case METRICS_FILE_OPTION:
+                    programInput.setMetricsFile(value);
+                    break;
+            }
         }
-        return new ProgramInput(serverList, maxConnection);
     }
 
     /**
@@ -28,7 +257,7 @@ public class UserInputHandler {
      * @param address - single URL or a .list file path.
      * @return List of servers' URLs.
      */
-    private static ArrayList<String> getServerAddresses(String address) {
+    public static ArrayList<String> getServerAddresses(String address) {
         ArrayList<String> result = new ArrayList<>();
         boolean isURL = address.matches("^(?:http(s)?).*");
         if (isURL) {
@@ -40,6 +269,31 @@ public class UserInputHandler {
         return result;
     }
 
+    /**
+     * Reads the expected digest of the source file from a sidecar file, in the format printed by
+     * sha256sum (a "DIGEST  FILE-NAME" line per file), or holding the digest alone.
+     * @param filePath - file path of the sidecar file.
+     * @param fileName - the name of the downloaded file.
+     * @return the digest given for the file in lowercase, or null if the file holds none.
+     */
+    public static String readHashFile(String filePath, String fileName) {
+        String line;
+        try (BufferedReader fileReader = new BufferedReader(new FileReader(filePath))) {
+            while ((line = fileReader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+\\*?", 2);
+                boolean isFileLine = fields.length == 1 || fields[1].equals(fileName);
+                if (isFileLine && isValidDigest(fields[0])) {
+                    return fields[0].toLowerCase();
+                }
+            }
+            ProgramPrinter.printMessage(String.format("No digest of %s found in %s.", fileName, filePath));
+        }
+        catch (IOException e) {
+            ProgramPrinter.printError("Unable to read the hash file.", e);
+        }
+        return null;
+    }
+
     /**
      * In case the user entered a file containing a list of servers' URLs,
      * creates an object containing these addresses.
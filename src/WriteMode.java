@@ -0,0 +1,34 @@
+/**
+ * The available strategies for moving downloaded data into the destination file.
+ */
+public enum WriteMode {
+
+    /**
+     * Getters download each chunk into memory and enqueue it, the ChunkWriter writes it to disk.
+     */
+    BUFFERED,
+
+    /**
+     * Getters write the network data straight into the destination file at the chunk's offset,
+     * and only enqueue a completion notice for the ChunkWriter.
+     */
+    STREAMING,
+
+    /**
+     * Getters copy the network data straight into the destination file mapped in memory, at the chunk's
+     * offset, and record the completed chunks themselves: there is no writer thread.
+     */
+    MAPPED;
+
+    /**
+     * Parses a write mode name given as a program argument (case insensitive).
+     * @param name - the write mode name.
+     * @returns the matching WriteMode, or null if no such mode exists.
+     */
+    public static WriteMode fromName(String name) {
+        for (WriteMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(name)) return mode;
+        }
+        return null;
+    }
+}